@@ -0,0 +1,201 @@
+/*
+ * JNI side of cc.nium.sni.io.Splice: zero-copy socket to socket forwarding through a pipe with splice(2).
+ * Linux only, built by the "splice" maven profile into target/libsniproxy.so.
+ */
+#define _GNU_SOURCE
+#include <jni.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/socket.h>
+#include <unistd.h>
+
+#define RESULT_EOF (-1)
+#define RESULT_TIMEOUT (-2)
+
+static void throwIOException(JNIEnv *env, const char *what, int err) {
+    char message[256];
+    snprintf(message, sizeof(message), "%s: %s", what, strerror(err));
+    jclass cls = (*env)->FindClass(env, "java/net/SocketException");
+    if (cls != NULL)
+        (*env)->ThrowNew(env, cls, message);
+}
+
+static jint fdOf(JNIEnv *env, jobject fdObject) {
+    jclass fdClass = (*env)->FindClass(env, "java/io/FileDescriptor");
+    jfieldID fdField = (*env)->GetFieldID(env, fdClass, "fd", "I");
+    if (fdField == NULL)
+        return -1;
+    return (*env)->GetIntField(env, fdObject, fdField);
+}
+
+/* owner.impl.getFileDescriptor().fd, the impl field of java.net.Socket and java.net.ServerSocket alike */
+static jint implFd(JNIEnv *env, jobject owner, const char *ownerClassName) {
+    jclass ownerClass = (*env)->FindClass(env, ownerClassName);
+    jfieldID implField = (*env)->GetFieldID(env, ownerClass, "impl", "Ljava/net/SocketImpl;");
+    if (implField == NULL)
+        return -1;
+    jobject impl = (*env)->GetObjectField(env, owner, implField);
+    if (impl == NULL)
+        return -1;
+    jclass implClass = (*env)->FindClass(env, "java/net/SocketImpl");
+    jmethodID getFileDescriptor = (*env)->GetMethodID(env, implClass, "getFileDescriptor", "()Ljava/io/FileDescriptor;");
+    if (getFileDescriptor == NULL)
+        return -1;
+    jobject fdObject = (*env)->CallObjectMethod(env, impl, getFileDescriptor);
+    if ((*env)->ExceptionCheck(env) || fdObject == NULL)
+        return -1;
+    return fdOf(env, fdObject);
+}
+
+/* works for plain, SOCKS and HTTP CONNECT sockets on Java 8 to 17+ */
+JNIEXPORT jint JNICALL Java_cc_nium_sni_io_Splice_fd(JNIEnv *env, jclass clazz, jobject socket) {
+    return implFd(env, socket, "java/net/Socket");
+}
+
+JNIEXPORT jint JNICALL Java_cc_nium_sni_io_Splice_serverFd(JNIEnv *env, jclass clazz, jobject serverSocket) {
+    return implFd(env, serverSocket, "java/net/ServerSocket");
+}
+
+/*
+ * Waits until one of the first count descriptors is readable, closed or failed, or timeoutMillis passed.
+ * Stores the poll(2) revents of each into revents and returns the count of those that are non-zero, 0 when interrupted.
+ */
+JNIEXPORT jint JNICALL Java_cc_nium_sni_io_Splice_poll(JNIEnv *env, jclass clazz, jintArray fds, jintArray revents, jint count, jint timeoutMillis) {
+    jint *values = malloc((size_t) count * sizeof(jint));
+    struct pollfd *p = malloc((size_t) count * sizeof(struct pollfd));
+    if (values == NULL || p == NULL) {
+        free(values);
+        free(p);
+        throwIOException(env, "poll", ENOMEM);
+        return 0;
+    }
+    (*env)->GetIntArrayRegion(env, fds, 0, count, values);
+    for (jint i = 0; i < count; i++) {
+        p[i].fd = values[i];
+        p[i].events = POLLIN;
+        p[i].revents = 0;
+    }
+    int n = poll(p, (nfds_t) count, timeoutMillis);
+    if (n < 0 && errno != EINTR)
+        throwIOException(env, "poll", errno);
+    for (jint i = 0; i < count; i++)
+        values[i] = p[i].revents;
+    (*env)->SetIntArrayRegion(env, revents, 0, count, values);
+    free(values);
+    free(p);
+    return n < 0 ? 0 : n;
+}
+
+/*
+ * The splice loop works on duplicates of the Java sockets' descriptors: closing a Java socket frees its number,
+ * which the next accept() may reuse, while the duplicate keeps the socket itself and its number alive until closed.
+ */
+JNIEXPORT jint JNICALL Java_cc_nium_sni_io_Splice_dup(JNIEnv *env, jclass clazz, jint fd) {
+    const int copy = fcntl(fd, F_DUPFD_CLOEXEC, 0);
+    if (copy < 0)
+        throwIOException(env, "dup", errno);
+    return copy;
+}
+
+/* shuts the socket down for every descriptor of it, waking a transfer blocked in poll, which closing a descriptor does not */
+JNIEXPORT void JNICALL Java_cc_nium_sni_io_Splice_shutdown(JNIEnv *env, jclass clazz, jint fd) {
+    shutdown(fd, SHUT_RDWR);
+}
+
+JNIEXPORT void JNICALL Java_cc_nium_sni_io_Splice_close(JNIEnv *env, jclass clazz, jint fd) {
+    close(fd);
+}
+
+/*
+ * Liveness probe like Socket.sendUrgentData. The splice loop fills send buffers at full speed,
+ * so ENOBUFS and EAGAIN only mean the buffer is full, not that the peer is gone.
+ */
+JNIEXPORT void JNICALL Java_cc_nium_sni_io_Splice_sendUrgentData(JNIEnv *env, jclass clazz, jint fd) {
+    const char zero = 0;
+    if (send(fd, &zero, 1, MSG_OOB | MSG_NOSIGNAL | MSG_DONTWAIT) < 0 && errno != ENOBUFS && errno != EAGAIN && errno != EINTR)
+        throwIOException(env, "send urgent data", errno);
+}
+
+/* returns (read end << 32) | write end */
+JNIEXPORT jlong JNICALL Java_cc_nium_sni_io_Splice_pipe(JNIEnv *env, jclass clazz, jint size) {
+    int fds[2];
+    if (pipe2(fds, O_NONBLOCK | O_CLOEXEC) < 0) {
+        throwIOException(env, "pipe2", errno);
+        return -1;
+    }
+    if (size > 0)
+        fcntl(fds[1], F_SETPIPE_SZ, size);
+    return ((jlong) fds[0] << 32) | (jlong) (unsigned int) fds[1];
+}
+
+JNIEXPORT void JNICALL Java_cc_nium_sni_io_Splice_closePipe(JNIEnv *env, jclass clazz, jlong pipe) {
+    close((int) (pipe >> 32));
+    close((int) (pipe & 0xFFFFFFFF));
+}
+
+static int waitFor(int fd, short events, int timeoutMillis) {
+    struct pollfd p = {.fd = fd, .events = events, .revents = 0};
+    int n;
+    do {
+        n = poll(&p, 1, timeoutMillis);
+    } while (n < 0 && errno == EINTR);
+    if (n < 0)
+        return -errno;
+    if (n > 0 && (p.revents & POLLNVAL))
+        return -EBADF;
+    return n;
+}
+
+/*
+ * Moves at most max bytes from socket in to socket out.
+ * Returns the count moved, RESULT_EOF when in reached end of stream,
+ * or RESULT_TIMEOUT when nothing arrived within timeoutMillis.
+ */
+JNIEXPORT jint JNICALL Java_cc_nium_sni_io_Splice_transfer(JNIEnv *env, jclass clazz, jint in, jint out, jlong pipe, jint max, jint timeoutMillis) {
+    const int pipeRead = (int) (pipe >> 32);
+    const int pipeWrite = (int) (pipe & 0xFFFFFFFF);
+    ssize_t n;
+    while (1) {
+        // poll first, the socket may be in blocking mode and splice would then ignore the timeout
+        const int ready = waitFor(in, POLLIN, timeoutMillis);
+        if (ready == 0)
+            return RESULT_TIMEOUT;
+        if (ready < 0) {
+            throwIOException(env, "poll in", -ready);
+            return 0;
+        }
+        n = splice(in, NULL, pipeWrite, NULL, (size_t) max, SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+        if (n > 0)
+            break;
+        if (n == 0)
+            return RESULT_EOF;
+        if (errno != EINTR && errno != EAGAIN) {
+            throwIOException(env, "splice in", errno);
+            return 0;
+        }
+    }
+    ssize_t pending = n;
+    while (pending > 0) {
+        const ssize_t m = splice(pipeRead, NULL, out, NULL, (size_t) pending, SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+        if (m > 0) {
+            pending -= m;
+            continue;
+        }
+        if (m < 0 && errno == EINTR)
+            continue;
+        if (m < 0 && errno != EAGAIN) {
+            throwIOException(env, "splice out", errno);
+            return 0;
+        }
+        const int ready = waitFor(out, POLLOUT, timeoutMillis);
+        if (ready < 0) {
+            throwIOException(env, "poll out", -ready);
+            return 0;
+        }
+    }
+    return (jint) n;
+}
@@ -1,29 +1,48 @@
 package cc.nium.sni;
 
+import cc.nium.sni.admin.AdminServer;
 import cc.nium.sni.config.Config;
+import cc.nium.sni.config.ConfigLoader;
 import cc.nium.sni.config.ServerConfig;
+import cc.nium.sni.io.ProxyServer;
+import cc.nium.sni.io.QuicServerSocket;
 import cc.nium.sni.io.SNIServerSocket;
 import cc.nium.sni.io.SNISocket;
+import cc.nium.sni.io.Upstream;
+import cc.nium.sni.log.AccessLog;
+import cc.nium.sni.stats.TopSNI;
 import cc.nium.sni.util.ConcurrentHashSet;
-import cc.nium.sni.util.Json;
-import com.fasterxml.jackson.core.JsonLocation;
-import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import cc.nium.sni.util.JsonException;
+import cc.nium.sni.util.ProcessInfo;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public final class Main {
 
-    private static ExecutorService pool = Executors.newCachedThreadPool();
     private static ConcurrentHashSet<SNISocket> allSockets = new ConcurrentHashSet<>();
-    private static ArrayList<SNIServerSocket> serverSockets = new ArrayList<>();
+    private static ArrayList<ProxyServer> serverSockets = new ArrayList<>();
+    private static long statsIntervalMillis = 0;
+    private static AccessLog accessLog = null;
 
+    /**
+     * Usage: {@code java -jar SNIProxy.jar [--startup-only] [config file]}.
+     * {@code --startup-only} exits once all servers are bound, for measuring startup and training AppCDS archives.
+     */
     public static void main(String[] args) {
+        final long mainStartNanos = System.nanoTime();
+        boolean startupOnly = false;
+        String configPath = "SNIProxy.json";
+        for (final String arg : args) {
+            if ("--startup-only".equals(arg)) {
+                startupOnly = true;
+            } else {
+                configPath = arg;
+            }
+        }
         try {
-            final Config config = Json.instance().readValue(new File("SNIProxy.json"), Config.class);
+            final Config config = ConfigLoader.load(new File(configPath));
             final int headBufferSize = config.getHeadBufferSize();
             if (headBufferSize <= 0 || headBufferSize > 1024 * 1024 * 1024) {
                 throw new RuntimeException("headBufferSize " + headBufferSize + " out of range: (0, " + 1024 * 1024 * 1024 + "]");
@@ -35,6 +54,42 @@ public final class Main {
             System.out.println("========================================");
             System.out.println("headBufferSize      = " + headBufferSize);
             System.out.println("forwarderBufferSize = " + forwarderBufferSize);
+            final int statsInterval = config.getStatsInterval();
+            if (statsInterval < 0) {
+                throw new RuntimeException("statsInterval " + statsInterval + " out of range: [0, " + Integer.MAX_VALUE + "]");
+            }
+            statsIntervalMillis = statsInterval * 1000L;
+            System.out.println("statsInterval       = " + statsInterval);
+            final int topK = config.getTopK();
+            if (topK < 0 || topK > 1024) {
+                throw new RuntimeException("topK " + topK + " out of range: [0, 1024]");
+            }
+            final int topWindowSeconds = config.getTopWindowSeconds();
+            if (topWindowSeconds <= 0 || topWindowSeconds > 24 * 3600) {
+                throw new RuntimeException("topWindowSeconds " + topWindowSeconds + " out of range: (0, " + 24 * 3600 + "]");
+            }
+            final TopSNI topSNI = new TopSNI(topK, topWindowSeconds);
+            System.out.println("topK                = " + topK + (topK == 0 ? "" : " (" + topWindowSeconds + "s)"));
+            final int adminPort = config.getAdminPort();
+            if (adminPort < 0 || adminPort > 65535) {
+                throw new RuntimeException("adminPort " + adminPort + " out of range: [0, 65535]");
+            }
+            System.out.println("admin               = " + (adminPort == 0 ? "off" : config.getAdminHost() + ":" + adminPort));
+            final String accessLogDir = config.getAccessLogDir();
+            if (accessLogDir != null && !accessLogDir.isEmpty()) {
+                final int accessLogSegmentMiB = config.getAccessLogSegmentMiB();
+                if (accessLogSegmentMiB <= 0 || accessLogSegmentMiB > 2047) {
+                    throw new RuntimeException("accessLogSegmentMiB " + accessLogSegmentMiB + " out of range: (0, 2047]");
+                }
+                final int accessLogRotateMinutes = config.getAccessLogRotateMinutes();
+                if (accessLogRotateMinutes <= 0) {
+                    throw new RuntimeException("accessLogRotateMinutes " + accessLogRotateMinutes + " out of range: (0, " + Integer.MAX_VALUE + "]");
+                }
+                accessLog = new AccessLog(new File(accessLogDir), accessLogSegmentMiB * 1024L * 1024L, accessLogRotateMinutes);
+                System.out.println("accessLog           = " + accessLogDir + " (" + accessLogSegmentMiB + " MiB, " + accessLogRotateMinutes + " min)");
+            } else {
+                System.out.println("accessLog           = off");
+            }
             System.out.println("========================================");
             final ArrayList<ServerConfig> serverConfigs = config.getServers();
             if (serverConfigs == null || serverConfigs.size() == 0) {
@@ -42,14 +97,30 @@ public final class Main {
                 return;
             }
             for (final ServerConfig serverConfig : serverConfigs) {
-                final SNIServerSocket serverSocket = new SNIServerSocket(pool, allSockets, config, serverConfig);
-                serverSockets.add(serverSocket);
+                final String protocol = serverConfig.getProtocol();
+                if ("tcp".equalsIgnoreCase(protocol)) {
+                    serverSockets.add(new SNIServerSocket(allSockets, topSNI, accessLog, config, serverConfig));
+                } else if ("quic".equalsIgnoreCase(protocol)) {
+                    serverSockets.add(new QuicServerSocket(topSNI, accessLog, config, serverConfig));
+                } else {
+                    throw new RuntimeException("unknown protocol: \"" + protocol + "\", available: [\"tcp\", \"quic\"]");
+                }
+            }
+            System.out.println("startup = " + ProcessInfo.uptimeMillis() + " ms (main " + (System.nanoTime() - mainStartNanos) / 1000000 + " ms), rss = " + ProcessInfo.rssKiB() + " KiB");
+            System.out.println("========================================");
+            if (startupOnly) {
+                for (final ProxyServer serverSocket : serverSockets) {
+                    serverSocket.close();
+                }
+                return;
+            }
+            if (adminPort != 0) {
+                new AdminServer(config.getAdminHost(), adminPort, topSNI);
             }
             accept();
-        } catch (InvalidFormatException e) {
+        } catch (JsonException e) {
             System.err.println("config error");
-            final JsonLocation location = e.getLocation();
-            System.err.println("\"" + e.getValue() + "\" is not " + e.getTargetType().getSimpleName() + " [line: " + location.getLineNr() + ", column: " + location.getColumnNr() + "]");
+            System.err.println(e.getMessage());
         } catch (IOException e) {
             System.err.println("config error");
             e.printStackTrace();
@@ -58,18 +129,35 @@ public final class Main {
 
     @SuppressWarnings({"InfiniteLoopStatement", "EmptyCatchBlock"})
     private static void accept() {
+        long nextStats = System.currentTimeMillis() + statsIntervalMillis;
         while (true) {
             try {
                 Thread.sleep(10);
             } catch (InterruptedException e) {
             }
-            for (final SNIServerSocket serverSocket : serverSockets) {
+            for (final ProxyServer serverSocket : serverSockets) {
                 try {
                     serverSocket.accept();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+            if (statsIntervalMillis > 0 && System.currentTimeMillis() >= nextStats) {
+                nextStats += statsIntervalMillis;
+                printStats();
+            }
+        }
+    }
+
+    private static void printStats() {
+        System.out.println("================ stats =================");
+        System.out.println("connections count = " + allSockets.size());
+        for (final ProxyServer serverSocket : serverSockets) {
+            serverSocket.printStats(System.out);
         }
+        Upstream.printStats(System.out);
+        if (accessLog != null)
+            accessLog.printStats(System.out);
+        System.out.println("========================================");
     }
 }
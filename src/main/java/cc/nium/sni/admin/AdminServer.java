@@ -0,0 +1,140 @@
+package cc.nium.sni.admin;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.stats.HeavyHitters;
+import cc.nium.sni.stats.TopSNI;
+import cc.nium.sni.util.NamedThreadFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Read-only HTTP endpoint for operators, bound to {@code adminHost:adminPort}.
+ * <ul>
+ * <li>{@code GET /top?k=N&by=connections|bytes}: heaviest SNI names in the sliding window, as JSON, both lists when {@code by} is absent</li>
+ * </ul>
+ */
+public final class AdminServer implements Closeable {
+
+    @NotNull
+    private final HttpServer server;
+    @NotNull
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("admin"));
+    @NotNull
+    private final TopSNI topSNI;
+
+    public AdminServer(@NotNull final String host, final int port, @NotNull final TopSNI topSNI) throws IOException {
+        this.topSNI = topSNI;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(host), port), 0);
+        server.setExecutor(executor);
+        server.createContext("/top", this::top);
+        server.start();
+    }
+
+    private void top(@NotNull final HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                error(exchange, 405, "method not allowed");
+                return;
+            }
+            int k = topSNI.getTopK();
+            String by = null;
+            final String query = exchange.getRequestURI().getRawQuery();
+            if (query != null) {
+                for (final String pair : query.split("&")) {
+                    final int eq = pair.indexOf('=');
+                    final String key = eq < 0 ? pair : pair.substring(0, eq);
+                    final String value = eq < 0 ? "" : pair.substring(eq + 1);
+                    if ("k".equals(key)) {
+                        try {
+                            k = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            k = -1;
+                        }
+                    } else if ("by".equals(key)) {
+                        by = value;
+                    }
+                }
+            }
+            if (topSNI.getConnections() == null || topSNI.getBytes() == null) {
+                error(exchange, 404, "top SNI tracking is disabled, set topK");
+                return;
+            }
+            final int capacity = topSNI.getConnections().getCapacity();
+            if (k <= 0 || k > capacity) {
+                error(exchange, 400, "k out of range: (0, " + capacity + "]");
+                return;
+            }
+            if (by != null && !"connections".equals(by) && !"bytes".equals(by)) {
+                error(exchange, 400, "unknown by: \"" + by + "\", available: [\"connections\", \"bytes\"]");
+                return;
+            }
+            final StringBuilder json = new StringBuilder("{\"windowSeconds\":").append(topSNI.getWindowSeconds());
+            if (by == null || "connections".equals(by))
+                append(json, "connections", topSNI.getConnections(), k);
+            if (by == null || "bytes".equals(by))
+                append(json, "bytes", topSNI.getBytes(), k);
+            respond(exchange, 200, json.append('}').toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void append(@NotNull final StringBuilder json, @NotNull final String name, @NotNull final HeavyHitters hitters, final int k) {
+        json.append(",\"").append(name).append("\":[");
+        boolean first = true;
+        for (final HeavyHitters.Entry entry : hitters.top(k)) {
+            if (!first)
+                json.append(',');
+            first = false;
+            json.append("{\"sni\":").append(quote(entry.getKey())).append(",\"count\":").append(entry.getCount()).append('}');
+        }
+        json.append(']');
+    }
+
+    /**
+     * SNI names come from clients, so anything may need escaping.
+     */
+    @NotNull
+    private static String quote(@NotNull final String s) {
+        final StringBuilder builder = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7F) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    private static void error(@NotNull final HttpExchange exchange, final int status, @NotNull final String message) throws IOException {
+        respond(exchange, status, "{\"error\":" + quote(message) + "}");
+    }
+
+    private static void respond(@NotNull final HttpExchange exchange, final int status, @NotNull final String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+}
@@ -6,6 +6,14 @@ public final class Config {
 
     private int headBufferSize = 8 * 1024;
     private int forwarderBufferSize = 8 * 1024;
+    private int statsInterval = 0;
+    private int topK = 20;
+    private int topWindowSeconds = 300;
+    private String adminHost = "127.0.0.1";
+    private int adminPort = 0;
+    private String accessLogDir = "";
+    private int accessLogSegmentMiB = 64;
+    private int accessLogRotateMinutes = 60;
     private ArrayList<ServerConfig> servers;
 
     public int getHeadBufferSize() {
@@ -24,6 +32,70 @@ public final class Config {
         this.forwarderBufferSize = forwarderBufferSize;
     }
 
+    public int getStatsInterval() {
+        return statsInterval;
+    }
+
+    public void setStatsInterval(int statsInterval) {
+        this.statsInterval = statsInterval;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public void setTopK(int topK) {
+        this.topK = topK;
+    }
+
+    public int getTopWindowSeconds() {
+        return topWindowSeconds;
+    }
+
+    public void setTopWindowSeconds(int topWindowSeconds) {
+        this.topWindowSeconds = topWindowSeconds;
+    }
+
+    public String getAdminHost() {
+        return adminHost;
+    }
+
+    public void setAdminHost(String adminHost) {
+        this.adminHost = adminHost;
+    }
+
+    public int getAdminPort() {
+        return adminPort;
+    }
+
+    public void setAdminPort(int adminPort) {
+        this.adminPort = adminPort;
+    }
+
+    public String getAccessLogDir() {
+        return accessLogDir;
+    }
+
+    public void setAccessLogDir(String accessLogDir) {
+        this.accessLogDir = accessLogDir;
+    }
+
+    public int getAccessLogSegmentMiB() {
+        return accessLogSegmentMiB;
+    }
+
+    public void setAccessLogSegmentMiB(int accessLogSegmentMiB) {
+        this.accessLogSegmentMiB = accessLogSegmentMiB;
+    }
+
+    public int getAccessLogRotateMinutes() {
+        return accessLogRotateMinutes;
+    }
+
+    public void setAccessLogRotateMinutes(int accessLogRotateMinutes) {
+        this.accessLogRotateMinutes = accessLogRotateMinutes;
+    }
+
     public ArrayList<ServerConfig> getServers() {
         return servers;
     }
@@ -0,0 +1,171 @@
+package cc.nium.sni.config;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.util.JsonReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Binds {@code SNIProxy.json} to {@link Config} without reflection, so the same code runs on the JVM and in a native image.
+ * Unknown fields are ignored.
+ */
+public final class ConfigLoader {
+
+    private ConfigLoader() {
+    }
+
+    @NotNull
+    public static Config load(@NotNull final File file) throws IOException {
+        final JsonReader reader = new JsonReader(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        final Config config = readConfig(reader);
+        reader.end();
+        return config;
+    }
+
+    @NotNull
+    private static Config readConfig(@NotNull final JsonReader reader) throws IOException {
+        final Config config = new Config();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "headBufferSize":
+                    config.setHeadBufferSize(reader.nextInt());
+                    break;
+                case "forwarderBufferSize":
+                    config.setForwarderBufferSize(reader.nextInt());
+                    break;
+                case "statsInterval":
+                    config.setStatsInterval(reader.nextInt());
+                    break;
+                case "topK":
+                    config.setTopK(reader.nextInt());
+                    break;
+                case "topWindowSeconds":
+                    config.setTopWindowSeconds(reader.nextInt());
+                    break;
+                case "adminHost":
+                    config.setAdminHost(reader.nextString());
+                    break;
+                case "adminPort":
+                    config.setAdminPort(reader.nextInt());
+                    break;
+                case "accessLogDir":
+                    config.setAccessLogDir(reader.nextNull() ? null : reader.nextString());
+                    break;
+                case "accessLogSegmentMiB":
+                    config.setAccessLogSegmentMiB(reader.nextInt());
+                    break;
+                case "accessLogRotateMinutes":
+                    config.setAccessLogRotateMinutes(reader.nextInt());
+                    break;
+                case "servers":
+                    config.setServers(reader.nextNull() ? null : readServers(reader));
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return config;
+    }
+
+    @NotNull
+    private static ArrayList<ServerConfig> readServers(@NotNull final JsonReader reader) throws IOException {
+        final ArrayList<ServerConfig> servers = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext())
+            servers.add(readServer(reader));
+        reader.endArray();
+        return servers;
+    }
+
+    @NotNull
+    private static ServerConfig readServer(@NotNull final JsonReader reader) throws IOException {
+        final ServerConfig server = new ServerConfig();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "protocol":
+                    server.setProtocol(reader.nextString());
+                    break;
+                case "proxyType":
+                    server.setProxyType(reader.nextString());
+                    break;
+                case "proxyHost":
+                    server.setProxyHost(reader.nextString());
+                    break;
+                case "proxyPort":
+                    server.setProxyPort(reader.nextInt());
+                    break;
+                case "bindHost":
+                    server.setBindHost(reader.nextString());
+                    break;
+                case "bindPort":
+                    server.setBindPort(reader.nextInt());
+                    break;
+                case "dstPort":
+                    server.setDstPort(reader.nextInt());
+                    break;
+                case "forwardMode":
+                    server.setForwardMode(reader.nextString());
+                    break;
+                case "transport":
+                    server.setTransport(reader.nextString());
+                    break;
+                case "coalesceDelayMicros":
+                    server.setCoalesceDelayMicros(reader.nextInt());
+                    break;
+                case "coalesceSegmentSize":
+                    server.setCoalesceSegmentSize(reader.nextInt());
+                    break;
+                case "proxyProtocolIn":
+                    server.setProxyProtocolIn(reader.nextBoolean());
+                    break;
+                case "proxyProtocolOut":
+                    server.setProxyProtocolOut(reader.nextString());
+                    break;
+                case "maxThreads":
+                    server.setMaxThreads(reader.nextInt());
+                    break;
+                case "maxQueue":
+                    server.setMaxQueue(reader.nextInt());
+                    break;
+                case "rejectPolicy":
+                    server.setRejectPolicy(reader.nextString());
+                    break;
+                case "connectLimiter":
+                    server.setConnectLimiter(reader.nextString());
+                    break;
+                case "connectLimitMax":
+                    server.setConnectLimitMax(reader.nextInt());
+                    break;
+                case "connectQueueMillis":
+                    server.setConnectQueueMillis(reader.nextInt());
+                    break;
+                case "connectTimeoutMillis":
+                    server.setConnectTimeoutMillis(reader.nextInt());
+                    break;
+                case "udpIdleSeconds":
+                    server.setUdpIdleSeconds(reader.nextInt());
+                    break;
+                case "handshakeTimeoutMillis":
+                    server.setHandshakeTimeoutMillis(reader.nextInt());
+                    break;
+                case "handshakeMinRate":
+                    server.setHandshakeMinRate(reader.nextInt());
+                    break;
+                case "deferAccept":
+                    server.setDeferAccept(reader.nextBoolean());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return server;
+    }
+}
@@ -2,12 +2,38 @@ package cc.nium.sni.config;
 
 public final class ServerConfig {
 
+    private String protocol = "tcp";
     private String proxyType = "socks";
     private String proxyHost;
     private int proxyPort;
     private String bindHost;
     private int bindPort;
     private int dstPort;
+    private String forwardMode = "direct";
+    private String transport = "java";
+    private int coalesceDelayMicros = 50;
+    private int coalesceSegmentSize = 1400;
+    private boolean proxyProtocolIn = false;
+    private String proxyProtocolOut = "none";
+    private int maxThreads = 1024;
+    private int maxQueue = 0;
+    private String rejectPolicy = "close";
+    private String connectLimiter = "none";
+    private int udpIdleSeconds = 60;
+    private int connectLimitMax = 256;
+    private int connectQueueMillis = 0;
+    private int connectTimeoutMillis = 10000;
+    private int handshakeTimeoutMillis = 10000;
+    private int handshakeMinRate = 64;
+    private boolean deferAccept = false;
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
 
     public String getProxyType() {
         return proxyType;
@@ -56,4 +82,140 @@ public final class ServerConfig {
     public void setDstPort(int dstPort) {
         this.dstPort = dstPort;
     }
+
+    public String getForwardMode() {
+        return forwardMode;
+    }
+
+    public void setForwardMode(String forwardMode) {
+        this.forwardMode = forwardMode;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public int getCoalesceDelayMicros() {
+        return coalesceDelayMicros;
+    }
+
+    public void setCoalesceDelayMicros(int coalesceDelayMicros) {
+        this.coalesceDelayMicros = coalesceDelayMicros;
+    }
+
+    public int getCoalesceSegmentSize() {
+        return coalesceSegmentSize;
+    }
+
+    public void setCoalesceSegmentSize(int coalesceSegmentSize) {
+        this.coalesceSegmentSize = coalesceSegmentSize;
+    }
+
+    public boolean isProxyProtocolIn() {
+        return proxyProtocolIn;
+    }
+
+    public void setProxyProtocolIn(boolean proxyProtocolIn) {
+        this.proxyProtocolIn = proxyProtocolIn;
+    }
+
+    public String getProxyProtocolOut() {
+        return proxyProtocolOut;
+    }
+
+    public void setProxyProtocolOut(String proxyProtocolOut) {
+        this.proxyProtocolOut = proxyProtocolOut;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public int getMaxQueue() {
+        return maxQueue;
+    }
+
+    public void setMaxQueue(int maxQueue) {
+        this.maxQueue = maxQueue;
+    }
+
+    public String getRejectPolicy() {
+        return rejectPolicy;
+    }
+
+    public void setRejectPolicy(String rejectPolicy) {
+        this.rejectPolicy = rejectPolicy;
+    }
+
+    public String getConnectLimiter() {
+        return connectLimiter;
+    }
+
+    public void setConnectLimiter(String connectLimiter) {
+        this.connectLimiter = connectLimiter;
+    }
+
+    public int getConnectLimitMax() {
+        return connectLimitMax;
+    }
+
+    public void setConnectLimitMax(int connectLimitMax) {
+        this.connectLimitMax = connectLimitMax;
+    }
+
+    public int getConnectQueueMillis() {
+        return connectQueueMillis;
+    }
+
+    public void setConnectQueueMillis(int connectQueueMillis) {
+        this.connectQueueMillis = connectQueueMillis;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public int getUdpIdleSeconds() {
+        return udpIdleSeconds;
+    }
+
+    public void setUdpIdleSeconds(int udpIdleSeconds) {
+        this.udpIdleSeconds = udpIdleSeconds;
+    }
+
+    public int getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public void setHandshakeTimeoutMillis(int handshakeTimeoutMillis) {
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+    }
+
+    public int getHandshakeMinRate() {
+        return handshakeMinRate;
+    }
+
+    public void setHandshakeMinRate(int handshakeMinRate) {
+        this.handshakeMinRate = handshakeMinRate;
+    }
+
+    public boolean isDeferAccept() {
+        return deferAccept;
+    }
+
+    public void setDeferAccept(boolean deferAccept) {
+        this.deferAccept = deferAccept;
+    }
 }
@@ -11,23 +11,34 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 @SuppressWarnings({"WeakerAccess"})
 public final class ByteTemporaryBuffer implements Closeable {
 
-    @NotNull
-    private final byte[] buffer;
     @NotNull
     private final SocketChecker socketChecker;
+    private final int maxCapacity;
+    @NotNull
+    private byte[] buffer;
     @Nullable
     private InputStream inputStream;
-    private int count = 0;
+    // volatile for getCount() only, written by the reading thread alone
+    private volatile int count = 0;
     private int readIndex = 0;
 
-    public ByteTemporaryBuffer(@NotNull final InputStream inputStream, @NotNull final SocketChecker socketChecker, final int capacity) {
+    /**
+     * Starts with {@code initialCapacity} bytes and doubles on demand, never beyond {@code maxCapacity}.
+     */
+    public ByteTemporaryBuffer(@NotNull final InputStream inputStream, @NotNull final SocketChecker socketChecker, final int initialCapacity, final int maxCapacity) {
         this.inputStream = inputStream;
         this.socketChecker = socketChecker;
-        this.buffer = new byte[capacity];
+        this.maxCapacity = maxCapacity;
+        this.buffer = new byte[Math.min(initialCapacity, maxCapacity)];
+    }
+
+    public ByteTemporaryBuffer(@NotNull final InputStream inputStream, @NotNull final SocketChecker socketChecker, final int capacity) {
+        this(inputStream, socketChecker, capacity, capacity);
     }
 
     public ByteTemporaryBuffer(@NotNull final InputStream inputStream, @NotNull final SocketChecker socketChecker) {
@@ -38,8 +49,11 @@ public final class ByteTemporaryBuffer implements Closeable {
         if (inputStream == null)
             throw new IOException("Buffer is closed");
         final int totalNeedLength = readIndex + needLength;
-        if (totalNeedLength > buffer.length)
-            throw new IOException("Buffer is fulled");
+        if (totalNeedLength > buffer.length) {
+            if (totalNeedLength > maxCapacity)
+                throw new SNIException("Buffer is fulled, max size is " + maxCapacity);
+            buffer = Arrays.copyOf(buffer, Math.min(Math.max(totalNeedLength, buffer.length * 2), maxCapacity));
+        }
         while (count < totalNeedLength) {
             try {
                 final int len = inputStream.read(buffer, count, buffer.length - count);
@@ -56,10 +70,33 @@ public final class ByteTemporaryBuffer implements Closeable {
         }
     }
 
+    /**
+     * Appends bytes already taken from the stream by someone else, they are read before anything from the stream.
+     */
+    public synchronized void prefill(@NotNull final byte[] bytes) throws IOException {
+        final int totalLength = count + bytes.length;
+        if (totalLength > buffer.length) {
+            if (totalLength > maxCapacity)
+                throw new SNIException("Buffer is fulled, max size is " + maxCapacity);
+            buffer = Arrays.copyOf(buffer, Math.min(Math.max(totalLength, buffer.length * 2), maxCapacity));
+        }
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count = totalLength;
+    }
+
     public int getReadIndex() {
         return readIndex;
     }
 
+    /**
+     * Not synchronized, so other threads can watch the progress of a read blocked in {@link #ensureContent}.
+     *
+     * @return count of bytes received and not discarded
+     */
+    public int getCount() {
+        return count;
+    }
+
     public synchronized int read8Bit() throws IOException {
         ensureContent(1);
         return buffer[readIndex++] & 0xFF;
@@ -98,10 +135,38 @@ public final class ByteTemporaryBuffer implements Closeable {
         }
     }
 
-    public synchronized void transferBufferToAndClose(@NotNull final OutputStream out) throws IOException {
+    /**
+     * Drops the bytes already read, so they are not part of {@link #transferBufferToAndClose}.
+     */
+    public synchronized void discardRead() {
+        System.arraycopy(buffer, readIndex, buffer, 0, count - readIndex);
+        count -= readIndex;
+        readIndex = 0;
+    }
+
+    /**
+     * @return count of bytes written
+     */
+    public synchronized int transferBufferToAndClose(@NotNull final OutputStream out) throws IOException {
         close();
         out.write(buffer, 0, count);
         out.flush();
+        return count;
+    }
+
+    /**
+     * Same as {@link #transferBufferToAndClose(OutputStream)}, with {@code prefix} sent first in the same write.
+     */
+    public synchronized int transferBufferToAndClose(@NotNull final OutputStream out, @Nullable final byte[] prefix) throws IOException {
+        if (prefix == null || prefix.length == 0)
+            return transferBufferToAndClose(out);
+        close();
+        final byte[] bytes = new byte[prefix.length + count];
+        System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+        System.arraycopy(buffer, 0, bytes, prefix.length, count);
+        out.write(bytes);
+        out.flush();
+        return bytes.length;
     }
 
     @Override
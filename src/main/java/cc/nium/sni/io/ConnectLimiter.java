@@ -0,0 +1,160 @@
+package cc.nium.sni.io;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.annotation.Nullable;
+
+import java.io.PrintStream;
+
+/**
+ * Adaptive cap on concurrent connects to one upstream proxy, raised while connect RTT stays flat and cut when it grows.
+ * <ul>
+ * <li>aimd: +1 per connect finished at the limit, x0.9 when the RTT exceeds twice the no-load RTT or the connect times out</li>
+ * <li>gradient: limit = limit * clamp(1.5 * longRtt / rtt, 0.5, 1) + sqrt(limit), smoothed, where longRtt is an EWMA of the RTT</li>
+ * </ul>
+ * Connects over the limit wait up to {@code queueMillis} for a slot, and are rejected after that.
+ */
+final class ConnectLimiter {
+
+    enum Algorithm {
+        Aimd,
+        Gradient,
+    }
+
+    private static final int minLimit = 1;
+    private static final int initialLimit = 20;
+    private static final double backoffRatio = 0.9;
+    private static final double rttTolerance = 1.5;
+    private static final double smoothing = 0.2;
+    private static final int longWindow = 600;
+    private static final long noLoadResetNanos = 30_000_000_000L;
+
+    @NotNull
+    private final Algorithm algorithm;
+    private final int maxLimit;
+    private final long queueNanos;
+
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private long rejected;
+    private long timeouts;
+    private long noLoadRttNanos;
+    private long noLoadSinceNanos;
+    private double longRttNanos;
+
+    ConnectLimiter(@NotNull final Algorithm algorithm, final int maxLimit, final int queueMillis) {
+        this.algorithm = algorithm;
+        this.maxLimit = maxLimit;
+        this.queueNanos = queueMillis * 1_000_000L;
+        this.limit = Math.min(initialLimit, maxLimit);
+    }
+
+    /**
+     * @return the algorithm for a config value, {@code null} for "none"
+     */
+    @Nullable
+    static Algorithm parseAlgorithm(final String algorithm) {
+        if ("none".equalsIgnoreCase(algorithm)) {
+            return null;
+        } else if ("aimd".equalsIgnoreCase(algorithm)) {
+            return Algorithm.Aimd;
+        } else if ("gradient".equalsIgnoreCase(algorithm)) {
+            return Algorithm.Gradient;
+        } else {
+            throw new RuntimeException("unknown connect limiter: \"" + algorithm + "\", available: [\"none\", \"aimd\", \"gradient\"]");
+        }
+    }
+
+    /**
+     * Takes a connect slot, waiting up to {@code queueMillis} for one.
+     *
+     * @return false when no slot became free in time, the caller must not connect nor call {@link #release}
+     */
+    synchronized boolean acquire() {
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return true;
+        }
+        long remaining = queueNanos;
+        if (remaining > 0) {
+            final long deadline = System.nanoTime() + remaining;
+            waiting++;
+            try {
+                while (inFlight >= (int) limit && remaining > 0) {
+                    wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+                    remaining = deadline - System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiting--;
+            }
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return true;
+            }
+        }
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Frees the slot taken by {@link #acquire}.
+     *
+     * @param rttNanos connect time, or a negative value when the connect failed for a reason that says nothing about the upstream load
+     * @param timeout  whether the connect timed out, which counts as overload
+     */
+    synchronized void release(final long rttNanos, final boolean timeout) {
+        final boolean saturated = inFlight >= (int) limit;
+        inFlight--;
+        if (timeout) {
+            timeouts++;
+            setLimit(limit * backoffRatio);
+        } else if (rttNanos >= 0) {
+            update(rttNanos, saturated);
+        }
+        notifyAll();
+    }
+
+    private void update(final long rttNanos, final boolean saturated) {
+        final long now = System.nanoTime();
+        // the no-load RTT is re-learned now and then, so a moved or re-routed upstream does not pin it forever
+        if (noLoadRttNanos == 0 || rttNanos < noLoadRttNanos || now - noLoadSinceNanos > noLoadResetNanos) {
+            noLoadRttNanos = rttNanos;
+            noLoadSinceNanos = now;
+        }
+        switch (algorithm) {
+            case Aimd:
+                if (rttNanos > 2 * noLoadRttNanos) {
+                    setLimit(limit * backoffRatio);
+                } else if (saturated) {
+                    setLimit(limit + 1);
+                }
+                break;
+            case Gradient:
+                longRttNanos = longRttNanos == 0 ? rttNanos : longRttNanos + (rttNanos - longRttNanos) / longWindow;
+                // the long average lags a sustained rise, pull it down once it sits far above the current RTT
+                if (longRttNanos > 2 * rttNanos)
+                    longRttNanos *= 0.95;
+                // grow only when the limit is actually in use, idle periods say nothing about capacity
+                if (!saturated && rttNanos <= longRttNanos)
+                    break;
+                final double gradient = Math.max(0.5, Math.min(1.0, rttTolerance * longRttNanos / rttNanos));
+                final double next = limit * gradient + Math.sqrt(limit);
+                setLimit(limit * (1 - smoothing) + next * smoothing);
+                break;
+        }
+    }
+
+    private void setLimit(final double limit) {
+        this.limit = Math.max(minLimit, Math.min(maxLimit, limit));
+    }
+
+    synchronized void printAndReset(@NotNull final PrintStream out, @NotNull final String name) {
+        out.println(name + " connect limit = " + (int) limit + "/" + maxLimit + " inFlight = " + inFlight + " waiting = " + waiting
+                + " rejected = " + rejected + " timeouts = " + timeouts
+                + " rtt noLoad = " + noLoadRttNanos / 1000 + "us" + (algorithm == Algorithm.Gradient ? " long = " + (long) longRttNanos / 1000 + "us" : ""));
+        rejected = 0;
+        timeouts = 0;
+    }
+}
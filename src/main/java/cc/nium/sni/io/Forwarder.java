@@ -1,4 +1,4 @@
 package cc.nium.sni.io;
 
-public interface Forwarder extends Runnable {
+public interface Forwarder extends SocketTask {
 }
@@ -0,0 +1,120 @@
+package cc.nium.sni.io;
+
+import cc.nium.sni.annotation.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the handshake stream carried by consecutive TLS Handshake records,
+ * so a message may be fragmented across any number of records.
+ * Only the bytes actually consumed are pulled into the underlying buffer.
+ * QUIC carries the same handshake stream without records, see {@link #unframed}.
+ */
+final class HandshakeReader {
+
+    private static final int maxRecordLength = 16384;
+
+    @NotNull
+    private final ByteTemporaryBuffer byteBuffer;
+    private final boolean framed;
+    private int recordRemaining = 0;
+    private int records = 0;
+    private int position = 0;
+
+    HandshakeReader(@NotNull final ByteTemporaryBuffer byteBuffer) {
+        this(byteBuffer, true);
+    }
+
+    private HandshakeReader(@NotNull final ByteTemporaryBuffer byteBuffer, final boolean framed) {
+        this.byteBuffer = byteBuffer;
+        this.framed = framed;
+    }
+
+    /**
+     * @return a reader over bare handshake messages, as reassembled from QUIC CRYPTO frames
+     */
+    @NotNull
+    static HandshakeReader unframed(@NotNull final ByteTemporaryBuffer byteBuffer) {
+        return new HandshakeReader(byteBuffer, false);
+    }
+
+    private void ensureRecord() throws IOException {
+        if (recordRemaining > 0)
+            return;
+        if (!framed) {
+            recordRemaining = Integer.MAX_VALUE;
+            return;
+        }
+        final int protocol = byteBuffer.read8Bit();
+        if (protocol != 0x16) {
+            if (records == 0)
+                throw new SNIException(String.format("First byte is 0x%02x, not a TLS Handshake", protocol));
+            throw new SNIException(String.format("Record %d type is 0x%02x, not a TLS Handshake", records, protocol));
+        }
+        @SuppressWarnings("unused") final int subVersion = byteBuffer.read8Bit();
+        @SuppressWarnings("unused") final int mainVersion = byteBuffer.read8Bit();
+        final int recordLength = byteBuffer.read16Bit();
+        if (recordLength == 0 || recordLength > maxRecordLength)
+            throw new SNIException(String.format("Record %d length (%d) out of range: (0, %d]", records, recordLength, maxRecordLength));
+        recordRemaining = recordLength;
+        records++;
+    }
+
+    /**
+     * @return count of handshake bytes consumed, excluding record headers
+     */
+    int getPosition() {
+        return position;
+    }
+
+    int read8Bit() throws IOException {
+        ensureRecord();
+        recordRemaining--;
+        position++;
+        return byteBuffer.read8Bit();
+    }
+
+    int read16Bit() throws IOException {
+        if (recordRemaining >= 2) {
+            recordRemaining -= 2;
+            position += 2;
+            return byteBuffer.read16Bit();
+        }
+        return (read8Bit() << 8) | read8Bit();
+    }
+
+    int read24Bit() throws IOException {
+        if (recordRemaining >= 3) {
+            recordRemaining -= 3;
+            position += 3;
+            return byteBuffer.read24Bit();
+        }
+        return (read8Bit() << 16) | (read8Bit() << 8) | read8Bit();
+    }
+
+    @NotNull
+    String readString(final int length) throws IOException {
+        ensureRecord();
+        if (length <= recordRemaining) {
+            recordRemaining -= length;
+            position += length;
+            return byteBuffer.readString(length);
+        }
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) read8Bit();
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void skipLength(int length) throws IOException {
+        while (length > 0) {
+            ensureRecord();
+            final int n = Math.min(length, recordRemaining);
+            byteBuffer.skipLength(n);
+            recordRemaining -= n;
+            position += n;
+            length -= n;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package cc.nium.sni.io;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HAProxy PROXY protocol, versions 1 (text) and 2 (binary).
+ *
+ * @see <a href="https://www.haproxy.org/download/2.8/doc/proxy-protocol.txt">proxy-protocol.txt</a>
+ */
+final class ProxyProtocol {
+
+    private static final byte[] v2Signature = {0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A};
+    private static final int v1MaxLength = 107;
+
+    enum Version {
+        None,
+        V1,
+        V2,
+    }
+
+    static final class Header {
+        @Nullable
+        private final InetSocketAddress source;
+        @Nullable
+        private final InetSocketAddress destination;
+
+        private Header(@Nullable final InetSocketAddress source, @Nullable final InetSocketAddress destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+
+        /**
+         * @return the original client, or null for LOCAL / UNKNOWN headers
+         */
+        @Nullable
+        InetSocketAddress getSource() {
+            return source;
+        }
+
+        @Nullable
+        InetSocketAddress getDestination() {
+            return destination;
+        }
+    }
+
+    private ProxyProtocol() {
+    }
+
+    @NotNull
+    static Version parseVersion(@Nullable final String version) {
+        if (version == null || "none".equalsIgnoreCase(version))
+            return Version.None;
+        if ("v1".equalsIgnoreCase(version))
+            return Version.V1;
+        if ("v2".equalsIgnoreCase(version))
+            return Version.V2;
+        throw new RuntimeException("unknown proxy protocol version: \"" + version + "\", available: [\"none\", \"v1\", \"v2\"]");
+    }
+
+    /**
+     * Reads a v1 or v2 header from the start of {@code byteBuffer}.
+     */
+    @NotNull
+    static Header read(@NotNull final ByteTemporaryBuffer byteBuffer) throws IOException {
+        final int first = byteBuffer.read8Bit();
+        if (first == 'P')
+            return readV1(byteBuffer);
+        if (first == (v2Signature[0] & 0xFF))
+            return readV2(byteBuffer);
+        throw new SNIException(String.format("First byte is 0x%02x, not a PROXY protocol header", first));
+    }
+
+    @NotNull
+    private static Header readV1(@NotNull final ByteTemporaryBuffer byteBuffer) throws IOException {
+        final StringBuilder sb = new StringBuilder("P");
+        while (true) {
+            if (sb.length() >= v1MaxLength)
+                throw new SNIException("PROXY v1 header too long");
+            final int ch = byteBuffer.read8Bit();
+            if (ch == '\n')
+                break;
+            sb.append((char) ch);
+        }
+        if (sb.length() == 0 || sb.charAt(sb.length() - 1) != '\r')
+            throw new SNIException("PROXY v1 header not terminated by CRLF");
+        final String[] parts = sb.substring(0, sb.length() - 1).split(" ");
+        if (!"PROXY".equals(parts[0]) || parts.length < 2)
+            throw new SNIException("Malformed PROXY v1 header");
+        if ("UNKNOWN".equals(parts[1]))
+            return new Header(null, null);
+        if (!"TCP4".equals(parts[1]) && !"TCP6".equals(parts[1]) || parts.length != 6)
+            throw new SNIException("Malformed PROXY v1 header");
+        final boolean ipv4 = "TCP4".equals(parts[1]);
+        return new Header(
+                new InetSocketAddress(parseLiteral(parts[2], ipv4), parsePort(parts[4])),
+                new InetSocketAddress(parseLiteral(parts[3], ipv4), parsePort(parts[5])));
+    }
+
+    /**
+     * Parses the address of the family named by the header, without a resolver: the text comes from the network.
+     */
+    @NotNull
+    private static InetAddress parseLiteral(@NotNull final String address, final boolean ipv4) throws IOException {
+        final byte[] bytes = ipv4 ? parseIPv4(address) : parseIPv6(address);
+        if (bytes == null)
+            throw new SNIException("Invalid " + (ipv4 ? "IPv4" : "IPv6") + " address in PROXY v1 header: " + address);
+        return InetAddress.getByAddress(bytes);
+    }
+
+    /**
+     * @return the 4 bytes of a dotted-quad address, or null
+     */
+    @Nullable
+    private static byte[] parseIPv4(@NotNull final String address) {
+        final String[] octets = address.split("\\.", -1);
+        if (octets.length != 4)
+            return null;
+        final byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            final int value = parseNumber(octets[i], 10, 3);
+            if (value < 0 || value > 255)
+                return null;
+            bytes[i] = (byte) value;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the 16 bytes of an IPv6 address in RFC 4291 text form, with at most one "::" and an optional trailing dotted quad, or null
+     */
+    @Nullable
+    private static byte[] parseIPv6(@NotNull final String address) {
+        if (address.indexOf(':') < 0)
+            return null;
+        String text = address;
+        final byte[] bytes = new byte[16];
+        int limit = 16;
+        if (text.indexOf('.') >= 0) {
+            final int colon = text.lastIndexOf(':');
+            final byte[] ipv4 = parseIPv4(text.substring(colon + 1));
+            if (ipv4 == null)
+                return null;
+            System.arraycopy(ipv4, 0, bytes, 12, 4);
+            limit = 12;
+            // keep the colon ending a "::" right before the dotted quad
+            text = text.substring(0, colon > 0 && text.charAt(colon - 1) == ':' ? colon + 1 : colon);
+        }
+        final int gap = text.indexOf("::");
+        if (gap >= 0 && text.indexOf("::", gap + 1) >= 0)
+            return null;
+        final String[] head = gap < 0 ? text.split(":", -1) : split(text.substring(0, gap));
+        final String[] tail = gap < 0 ? new String[0] : split(text.substring(gap + 2));
+        final int groups = head.length + tail.length;
+        if (gap < 0 ? groups * 2 != limit : groups * 2 >= limit)
+            return null;
+        for (int i = 0; i < head.length; i++) {
+            if (!putGroup(bytes, i * 2, head[i]))
+                return null;
+        }
+        for (int i = 0; i < tail.length; i++) {
+            if (!putGroup(bytes, limit - (tail.length - i) * 2, tail[i]))
+                return null;
+        }
+        return bytes;
+    }
+
+    @NotNull
+    private static String[] split(@NotNull final String groups) {
+        return groups.isEmpty() ? new String[0] : groups.split(":", -1);
+    }
+
+    private static boolean putGroup(@NotNull final byte[] bytes, final int offset, @NotNull final String group) {
+        final int value = parseNumber(group, 16, 4);
+        if (value < 0)
+            return false;
+        bytes[offset] = (byte) (value >> 8);
+        bytes[offset + 1] = (byte) value;
+        return true;
+    }
+
+    /**
+     * @return the value of 1 to {@code maxDigits} digits, or -1
+     */
+    private static int parseNumber(@NotNull final String digits, final int radix, final int maxDigits) {
+        if (digits.isEmpty() || digits.length() > maxDigits)
+            return -1;
+        int value = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            final int digit = Character.digit(digits.charAt(i), radix);
+            // Character.digit also takes non-ASCII digits
+            if (digit < 0 || digits.charAt(i) > 'f')
+                return -1;
+            value = value * radix + digit;
+        }
+        return value;
+    }
+
+    private static int parsePort(@NotNull final String port) throws IOException {
+        try {
+            final int value = Integer.parseInt(port);
+            if (value >= 0 && value <= 65535)
+                return value;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new SNIException("Invalid port in PROXY v1 header: " + port);
+    }
+
+    @NotNull
+    private static Header readV2(@NotNull final ByteTemporaryBuffer byteBuffer) throws IOException {
+        for (int i = 1; i < v2Signature.length; i++) {
+            if (byteBuffer.read8Bit() != (v2Signature[i] & 0xFF))
+                throw new SNIException("Malformed PROXY v2 signature");
+        }
+        final int versionCommand = byteBuffer.read8Bit();
+        if ((versionCommand & 0xF0) != 0x20)
+            throw new SNIException(String.format("PROXY v2 version (0x%02x) is not 0x2", versionCommand >> 4));
+        final int family = byteBuffer.read8Bit();
+        final int length = byteBuffer.read16Bit();
+        final boolean local = (versionCommand & 0x0F) == 0x00;
+        final int addressLength;
+        if (family == 0x11) {// TCP over IPv4
+            addressLength = 4;
+        } else if (family == 0x21) {// TCP over IPv6
+            addressLength = 16;
+        } else {
+            addressLength = 0;
+        }
+        if (local || addressLength == 0) {
+            byteBuffer.skipLength(length);
+            return new Header(null, null);
+        }
+        if (length < addressLength * 2 + 4)
+            throw new SNIException("PROXY v2 address block too short: " + length);
+        final byte[] sourceAddress = new byte[addressLength];
+        final byte[] destinationAddress = new byte[addressLength];
+        for (int i = 0; i < addressLength; i++)
+            sourceAddress[i] = (byte) byteBuffer.read8Bit();
+        for (int i = 0; i < addressLength; i++)
+            destinationAddress[i] = (byte) byteBuffer.read8Bit();
+        final int sourcePort = byteBuffer.read16Bit();
+        final int destinationPort = byteBuffer.read16Bit();
+        // skip TLVs
+        byteBuffer.skipLength(length - addressLength * 2 - 4);
+        return new Header(
+                new InetSocketAddress(InetAddress.getByAddress(sourceAddress), sourcePort),
+                new InetSocketAddress(InetAddress.getByAddress(destinationAddress), destinationPort));
+    }
+
+    /**
+     * Encodes a header announcing {@code source} connecting to {@code destination}.
+     * When the address families differ, IPv4 addresses are sent as IPv4-mapped IPv6.
+     */
+    @NotNull
+    static byte[] encode(@NotNull final Version version, @NotNull final InetSocketAddress source, @NotNull final InetSocketAddress destination) {
+        final boolean ipv4 = source.getAddress() instanceof Inet4Address && destination.getAddress() instanceof Inet4Address;
+        if (version == Version.V1) {
+            final String header = "PROXY " + (ipv4 ? "TCP4 " : "TCP6 ")
+                    + toText(source.getAddress(), ipv4) + " " + toText(destination.getAddress(), ipv4) + " "
+                    + source.getPort() + " " + destination.getPort() + "\r\n";
+            return header.getBytes(StandardCharsets.US_ASCII);
+        }
+        final int addressLength = ipv4 ? 4 : 16;
+        final ByteBuffer header = ByteBuffer.allocate(v2Signature.length + 4 + addressLength * 2 + 4);
+        header.put(v2Signature);
+        header.put((byte) 0x21);// version 2, PROXY command
+        header.put((byte) (ipv4 ? 0x11 : 0x21));
+        header.putShort((short) (addressLength * 2 + 4));
+        header.put(toBytes(source.getAddress(), ipv4));
+        header.put(toBytes(destination.getAddress(), ipv4));
+        header.putShort((short) source.getPort());
+        header.putShort((short) destination.getPort());
+        return header.array();
+    }
+
+    @NotNull
+    private static byte[] toBytes(@NotNull final InetAddress address, final boolean ipv4) {
+        final byte[] bytes = address.getAddress();
+        if (ipv4 || bytes.length == 16)
+            return bytes;
+        final byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xFF;
+        mapped[11] = (byte) 0xFF;
+        System.arraycopy(bytes, 0, mapped, 12, 4);
+        return mapped;
+    }
+
+    @NotNull
+    private static String toText(@NotNull final InetAddress address, final boolean ipv4) {
+        if (ipv4 || !(address instanceof Inet4Address))
+            return address.getHostAddress();
+        return "::ffff:" + address.getHostAddress();
+    }
+}
@@ -0,0 +1,20 @@
+package cc.nium.sni.io;
+
+import cc.nium.sni.annotation.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * A bound listener driven by the main loop, {@link SNIServerSocket} for TLS over TCP, {@link QuicServerSocket} for QUIC over UDP.
+ */
+public interface ProxyServer extends Closeable {
+
+    /**
+     * Called from the main loop every few milliseconds, must not block for long.
+     */
+    void accept() throws IOException;
+
+    void printStats(@NotNull PrintStream out);
+}
@@ -0,0 +1,285 @@
+package cc.nium.sni.io;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.annotation.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Recovers the ClientHello of a QUIC connection (RFC 9000 / 9001, v2 in RFC 9369) from its client Initial packets.
+ * Initial packets are protected with keys derived from the public, version-specific salt and the destination connection id,
+ * so anyone on the path can remove the protection. The CRYPTO frames of every Initial packet are reassembled in place
+ * until the whole ClientHello is present, which may take more than one datagram.
+ */
+final class QuicInitial {
+
+    static final int version1 = 0x00000001;
+    static final int version2 = 0x6b3343cf;
+
+    private static final byte[] salt1 = hex("38762cf7f55934b34d179ae6a4c80cadccbb7f0a");
+    private static final byte[] salt2 = hex("0dede3def700a6db819381be6e269dcbf9bd2ed9");
+    private static final int maxConnectionIdLength = 20;
+    private static final int sampleLength = 16;
+    private static final int tagLength = 16;
+
+    @NotNull
+    private final byte[] crypto;
+    @NotNull
+    private final BitSet received = new BitSet();
+    private int version;
+    @Nullable
+    private byte[] connectionId;
+    @Nullable
+    private SecretKeySpec key;
+    @Nullable
+    private byte[] iv;
+    @Nullable
+    private Cipher headerProtection;
+
+    /**
+     * @param maxLength max size of the reassembled ClientHello
+     */
+    QuicInitial(final int maxLength) {
+        this.crypto = new byte[maxLength];
+    }
+
+    /**
+     * @return whether the datagram starts with a long header packet of a supported version
+     */
+    static boolean isInitial(@NotNull final byte[] datagram, final int length) {
+        if (length < 7 || (datagram[0] & 0xC0) != 0xC0)
+            return false;
+        final int version = readInt(datagram, 1);
+        final int type = (datagram[0] >> 4) & 0x03;
+        return version == version1 && type == 0 || version == version2 && type == 1;
+    }
+
+    /**
+     * Decrypts the Initial packets coalesced in {@code datagram} and keeps their CRYPTO frames.
+     * Other packet types are skipped, the datagram itself is not modified.
+     */
+    void add(@NotNull final byte[] datagram, final int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int first = datagram[offset] & 0xFF;
+            // short header packets run to the end of the datagram and are not ours to read
+            if ((first & 0x80) == 0 || length - offset < 7)
+                return;
+            final int packetVersion = readInt(datagram, offset + 1);
+            if (packetVersion != version1 && packetVersion != version2)
+                throw new SNIException(String.format("QUIC version 0x%08x not supported", packetVersion));
+            final int type = (first >> 4) & 0x03;
+            final boolean initial = packetVersion == version1 ? type == 0 : type == 1;
+            final boolean retry = packetVersion == version1 ? type == 3 : type == 0;
+            if (retry)
+                return;
+            final Cursor cursor = new Cursor(datagram, offset + 5, length);
+            final int dcidLength = cursor.read8Bit();
+            if (dcidLength > maxConnectionIdLength)
+                throw new SNIException("QUIC connection id length (" + dcidLength + ") out of range: [0, " + maxConnectionIdLength + "]");
+            final int dcidOffset = cursor.position;
+            cursor.skip(dcidLength);
+            final int scidLength = cursor.read8Bit();
+            if (scidLength > maxConnectionIdLength)
+                throw new SNIException("QUIC connection id length (" + scidLength + ") out of range: [0, " + maxConnectionIdLength + "]");
+            cursor.skip(scidLength);
+            if (initial)
+                cursor.skip(cursor.readVarIntLength());
+            final int packetLength = cursor.readVarIntLength();
+            final int pnOffset = cursor.position;
+            if (packetLength > length - pnOffset)
+                throw new SNIException("QUIC packet length (" + packetLength + ") out of bounds");
+            if (initial)
+                decrypt(datagram, offset, pnOffset, pnOffset + packetLength, packetVersion, Arrays.copyOfRange(datagram, dcidOffset, dcidOffset + dcidLength));
+            offset = pnOffset + packetLength;
+        }
+    }
+
+    /**
+     * @return the SNI once the complete ClientHello has arrived, otherwise null
+     */
+    @Nullable
+    String getServerName() throws IOException {
+        final int available = received.nextClearBit(0);
+        if (available < 4)
+            return null;
+        final int helloLength = 4 + ((crypto[1] & 0xFF) << 16 | (crypto[2] & 0xFF) << 8 | (crypto[3] & 0xFF));
+        if (available < helloLength)
+            return null;
+        // the whole message is in memory, running out of it is a malformed ClientHello rather than a slow client
+        try (final ByteTemporaryBuffer byteBuffer = new ByteTemporaryBuffer(new ByteArrayInputStream(crypto, 0, helloLength), () -> true, helloLength)) {
+            return SNISocket.parseClientHello(HandshakeReader.unframed(byteBuffer));
+        }
+    }
+
+    private void decrypt(@NotNull final byte[] datagram, final int packetOffset, final int pnOffset, final int packetEnd, final int packetVersion, @NotNull final byte[] dcid) throws IOException {
+        if (pnOffset + 4 + sampleLength > packetEnd)
+            throw new SNIException("QUIC packet too short for header protection sample");
+        try {
+            deriveKeys(packetVersion, dcid);
+            final byte[] mask = headerProtection.doFinal(datagram, pnOffset + 4, sampleLength);
+            final int pnLength = ((datagram[packetOffset] ^ mask[0]) & 0x03) + 1;
+            final byte[] header = Arrays.copyOfRange(datagram, packetOffset, pnOffset + pnLength);
+            header[0] ^= mask[0] & 0x0F;
+            final byte[] nonce = iv.clone();
+            for (int i = 0; i < pnLength; i++) {
+                header[pnOffset - packetOffset + i] ^= mask[1 + i];
+                nonce[nonce.length - pnLength + i] ^= header[pnOffset - packetOffset + i];
+            }
+            final int payloadOffset = pnOffset + pnLength;
+            if (packetEnd - payloadOffset < tagLength)
+                throw new SNIException("QUIC packet too short for AEAD tag");
+            final Cipher aead = Cipher.getInstance("AES/GCM/NoPadding");
+            aead.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(tagLength * 8, nonce));
+            aead.updateAAD(header);
+            readFrames(aead.doFinal(datagram, payloadOffset, packetEnd - payloadOffset));
+        } catch (GeneralSecurityException e) {
+            throw new SNIException("QUIC Initial packet not decryptable: " + e.getMessage());
+        }
+    }
+
+    private void readFrames(@NotNull final byte[] payload) throws IOException {
+        final Cursor cursor = new Cursor(payload, 0, payload.length);
+        while (cursor.position < payload.length) {
+            final int type = cursor.read8Bit();
+            switch (type) {
+                case 0x00: // PADDING
+                case 0x01: // PING
+                    break;
+                case 0x02: // ACK
+                case 0x03: {// ACK with ECN counts
+                    cursor.readVarInt();
+                    cursor.readVarInt();
+                    final long ranges = cursor.readVarInt();
+                    cursor.readVarInt();
+                    for (long i = 0; i < ranges * 2; i++)
+                        cursor.readVarInt();
+                    if (type == 0x03) {
+                        cursor.readVarInt();
+                        cursor.readVarInt();
+                        cursor.readVarInt();
+                    }
+                    break;
+                }
+                case 0x06: {// CRYPTO
+                    final long offset = cursor.readVarInt();
+                    final int length = cursor.readVarIntLength();
+                    if (offset + length > crypto.length)
+                        throw new SNIException("Buffer is fulled, max size is " + crypto.length);
+                    cursor.ensure(length);
+                    System.arraycopy(payload, cursor.position, crypto, (int) offset, length);
+                    received.set((int) offset, (int) offset + length);
+                    cursor.skip(length);
+                    break;
+                }
+                case 0x1C: // CONNECTION_CLOSE
+                    throw new SNIException("QUIC connection closed by client");
+                default:
+                    throw new SNIException(String.format("QUIC frame type 0x%02x not allowed in Initial packets", type));
+            }
+        }
+    }
+
+    private void deriveKeys(final int packetVersion, @NotNull final byte[] dcid) throws GeneralSecurityException {
+        if (key != null && version == packetVersion && Arrays.equals(connectionId, dcid))
+            return;
+        final boolean v2 = packetVersion == version2;
+        final byte[] initialSecret = hmac(v2 ? salt2 : salt1, dcid);
+        final byte[] clientSecret = expandLabel(initialSecret, "client in", 32);
+        key = new SecretKeySpec(expandLabel(clientSecret, v2 ? "quicv2 key" : "quic key", 16), "AES");
+        iv = expandLabel(clientSecret, v2 ? "quicv2 iv" : "quic iv", 12);
+        headerProtection = Cipher.getInstance("AES/ECB/NoPadding");
+        headerProtection.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(expandLabel(clientSecret, v2 ? "quicv2 hp" : "quic hp", 16), "AES"));
+        version = packetVersion;
+        connectionId = dcid;
+    }
+
+    /**
+     * HKDF-Expand-Label of TLS 1.3 with an empty context, for outputs of at most one SHA-256 block.
+     */
+    @NotNull
+    private static byte[] expandLabel(@NotNull final byte[] secret, @NotNull final String label, final int length) throws GeneralSecurityException {
+        final byte[] fullLabel = ("tls13 " + label).getBytes(StandardCharsets.US_ASCII);
+        final byte[] info = new byte[2 + 1 + fullLabel.length + 1 + 1];
+        info[0] = (byte) (length >> 8);
+        info[1] = (byte) length;
+        info[2] = (byte) fullLabel.length;
+        System.arraycopy(fullLabel, 0, info, 3, fullLabel.length);
+        info[info.length - 2] = 0;
+        info[info.length - 1] = 1;
+        return Arrays.copyOf(hmac(secret, info), length);
+    }
+
+    @NotNull
+    private static byte[] hmac(@NotNull final byte[] key, @NotNull final byte[] data) throws GeneralSecurityException {
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    private static int readInt(@NotNull final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    @NotNull
+    private static byte[] hex(@NotNull final String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        return bytes;
+    }
+
+    private static final class Cursor {
+        @NotNull
+        private final byte[] bytes;
+        private final int end;
+        private int position;
+
+        private Cursor(@NotNull final byte[] bytes, final int position, final int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        private void ensure(final int length) throws SNIException {
+            if (length < 0 || length > end - position)
+                throw new SNIException("QUIC packet truncated");
+        }
+
+        private int read8Bit() throws SNIException {
+            ensure(1);
+            return bytes[position++] & 0xFF;
+        }
+
+        private void skip(final int length) throws SNIException {
+            ensure(length);
+            position += length;
+        }
+
+        private long readVarInt() throws SNIException {
+            final int first = read8Bit();
+            final int length = 1 << (first >> 6);
+            ensure(length - 1);
+            long value = first & 0x3F;
+            for (int i = 1; i < length; i++)
+                value = value << 8 | (bytes[position++] & 0xFF);
+            return value;
+        }
+
+        private int readVarIntLength() throws SNIException {
+            final long value = readVarInt();
+            if (value > end - position)
+                throw new SNIException("QUIC length (" + value + ") out of bounds");
+            return (int) value;
+        }
+    }
+}
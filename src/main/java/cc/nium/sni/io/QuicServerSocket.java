@@ -0,0 +1,450 @@
+package cc.nium.sni.io;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.annotation.Nullable;
+import cc.nium.sni.config.Config;
+import cc.nium.sni.config.ServerConfig;
+import cc.nium.sni.log.AccessLog;
+import cc.nium.sni.log.AccessLogRecord;
+import cc.nium.sni.stats.PhaseLatency;
+import cc.nium.sni.stats.TopSNI;
+import cc.nium.sni.util.NamedThreadFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * QUIC (HTTP/3) listener: takes the SNI from the client Initial packets of each new flow and relays the flow,
+ * datagrams untouched, through a SOCKS5 UDP ASSOCIATE upstream.
+ * A flow is keyed by the client address and expires after {@code udpIdleSeconds} without datagrams in either direction.
+ */
+public final class QuicServerSocket implements ProxyServer {
+
+    private static final int maxDatagramSize = 65535;
+    // datagrams held while the ClientHello is incomplete or the association is being set up
+    private static final int maxPendingDatagrams = 32;
+    private static final long sweepIntervalMillis = 1000;
+
+    private enum State {
+        Parsing,
+        Connecting,
+        Open,
+        Closed,
+    }
+
+    private final DatagramSocket socket;
+    private final ConcurrentHashMap<InetSocketAddress, Flow> flows = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor pool;
+    private final Thread receiver;
+    private final TopSNI topSNI;
+    @Nullable
+    private final AccessLog accessLog;
+    private final Config config;
+    private final InetSocketAddress proxyAddress;
+    private final Upstream upstream;
+    private final int dstPort;
+    private final int connectTimeoutMillis;
+    private final long idleMillis;
+    private final String name;
+    private final PhaseLatency latency = new PhaseLatency();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder packetsUp = new LongAdder();
+    private final LongAdder bytesUp = new LongAdder();
+    private final LongAdder packetsDown = new LongAdder();
+    private final LongAdder bytesDown = new LongAdder();
+    private long nextSweepMillis = 0;
+
+    public QuicServerSocket(TopSNI topSNI, @Nullable AccessLog accessLog, Config config, ServerConfig serverConfig) throws IOException {
+        this.topSNI = topSNI;
+        this.accessLog = accessLog;
+        this.config = config;
+
+        final String proxyTypeStr = serverConfig.getProxyType();
+        if (!"socks".equalsIgnoreCase(proxyTypeStr)) {
+            throw new RuntimeException("unsupported proxy type for quic: \"" + proxyTypeStr + "\", available: [\"socks\"]");
+        }
+        final String proxyHostStr = serverConfig.getProxyHost();
+        final InetAddress proxyHost = InetAddress.getByName(proxyHostStr);
+        final int proxyPort = serverConfig.getProxyPort();
+        if (proxyPort <= 0 || proxyPort > 65535) {
+            throw new RuntimeException("proxyPort " + proxyPort + " out of range: (0, 65535]");
+        }
+        this.proxyAddress = new InetSocketAddress(proxyHost, proxyPort);
+        final ConnectLimiter.Algorithm connectLimiter = ConnectLimiter.parseAlgorithm(serverConfig.getConnectLimiter());
+        final int connectLimitMax = serverConfig.getConnectLimitMax();
+        if (connectLimitMax <= 0) {
+            throw new RuntimeException("connectLimitMax " + connectLimitMax + " out of range: (0, " + Integer.MAX_VALUE + "]");
+        }
+        final int connectQueueMillis = serverConfig.getConnectQueueMillis();
+        if (connectQueueMillis < 0 || connectQueueMillis > 60 * 1000) {
+            throw new RuntimeException("connectQueueMillis " + connectQueueMillis + " out of range: [0, " + 60 * 1000 + "]");
+        }
+        this.connectTimeoutMillis = serverConfig.getConnectTimeoutMillis();
+        if (connectTimeoutMillis <= 0 || connectTimeoutMillis > 600 * 1000) {
+            throw new RuntimeException("connectTimeoutMillis " + connectTimeoutMillis + " out of range: (0, " + 600 * 1000 + "]");
+        }
+        this.upstream = Upstream.of(new Proxy(Proxy.Type.SOCKS, proxyAddress), connectLimiter, connectLimitMax, connectQueueMillis);
+
+        final String bindHostStr = serverConfig.getBindHost();
+        final InetAddress bindHost = InetAddress.getByName(bindHostStr);
+        final int bindPort = serverConfig.getBindPort();
+        if (bindPort <= 0 || bindPort > 65535) {
+            throw new RuntimeException("bindPort " + bindPort + " out of range: (0, 65535]");
+        }
+        this.dstPort = serverConfig.getDstPort();
+        if (dstPort <= 0 || dstPort > 65535) {
+            throw new RuntimeException("dstPort " + dstPort + " out of range: (0, 65535]");
+        }
+        final int udpIdleSeconds = serverConfig.getUdpIdleSeconds();
+        if (udpIdleSeconds <= 0 || udpIdleSeconds > 3600) {
+            throw new RuntimeException("udpIdleSeconds " + udpIdleSeconds + " out of range: (0, 3600]");
+        }
+        this.idleMillis = udpIdleSeconds * 1000L;
+        final int maxThreads = serverConfig.getMaxThreads();
+        if (maxThreads <= 0) {
+            throw new RuntimeException("maxThreads " + maxThreads + " out of range: (0, " + Integer.MAX_VALUE + "]");
+        }
+        this.name = "quic " + bindHostStr + ":" + bindPort;
+
+        socket = new DatagramSocket(new InetSocketAddress(bindHost, bindPort));
+        // every open flow holds one thread blocked on its relay socket, a flow that finds none is dropped
+        pool = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new NamedThreadFactory("quic-" + bindPort), (r, executor) -> ((SocketTask) r).reject());
+        receiver = new NamedThreadFactory("quic-" + bindPort + "-rx").newThread(this::receive);
+
+        System.out.println("protocol  = quic");
+        System.out.println("proxyType = " + proxyTypeStr);
+        System.out.println("proxyHost = " + proxyHostStr);
+        System.out.println("proxyPort = " + proxyPort);
+        System.out.println("bindHost  = " + bindHostStr);
+        System.out.println("bindPort  = " + bindPort);
+        System.out.println("dstPort   = " + dstPort);
+        System.out.println("udpIdle   = " + udpIdleSeconds + "s");
+        System.out.println("connect   = " + (connectLimiter == null ? "unlimited" : connectLimiter.toString().toLowerCase() + " limit <= " + connectLimitMax + ", queue " + connectQueueMillis + "ms") + ", timeout " + connectTimeoutMillis + "ms");
+        System.out.println("pool      = " + maxThreads + " threads");
+        System.out.println("========================================");
+        receiver.start();
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void receive() {
+        final byte[] buffer = new byte[maxDatagramSize];
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (true) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (socket.isClosed())
+                    return;
+                e.printStackTrace();
+                continue;
+            }
+            final InetSocketAddress client = (InetSocketAddress) packet.getSocketAddress();
+            final int length = packet.getLength();
+            Flow flow = flows.get(client);
+            if (flow == null) {
+                // anything but a client Initial is a flow we never saw start, or not QUIC at all
+                if (!QuicInitial.isInitial(buffer, length)) {
+                    dropped.increment();
+                    continue;
+                }
+                flow = new Flow(client);
+                flows.put(client, flow);
+            }
+            flow.fromClient(buffer, length);
+        }
+    }
+
+    /**
+     * Expires idle flows, at most once per second.
+     */
+    @Override
+    public void accept() {
+        final long now = System.currentTimeMillis();
+        if (now < nextSweepMillis)
+            return;
+        nextSweepMillis = now + sweepIntervalMillis;
+        final Iterator<Map.Entry<InetSocketAddress, Flow>> iterator = flows.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Flow flow = iterator.next().getValue();
+            if (now - flow.lastActiveMillis > idleMillis) {
+                iterator.remove();
+                expired.increment();
+                flow.close(AccessLogRecord.Reason.Expire);
+            }
+        }
+    }
+
+    @Override
+    public void printStats(@NotNull final PrintStream out) {
+        out.println(name + " flows = " + flows.size() + " opened = " + opened.sumThenReset() + " expired = " + expired.sumThenReset()
+                + " failed = " + failed.sumThenReset() + " dropped = " + dropped.sumThenReset()
+                + " threads = " + pool.getPoolSize() + "/" + pool.getMaximumPoolSize());
+        out.println(name + " ↑ packets = " + packetsUp.sumThenReset() + " bytes = " + bytesUp.sumThenReset());
+        out.println(name + " ↓ packets = " + packetsDown.sumThenReset() + " bytes = " + bytesDown.sumThenReset());
+        latency.printAndReset(out, name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        for (final Flow flow : flows.values())
+            flow.close(AccessLogRecord.Reason.Close);
+        flows.clear();
+        pool.shutdown();
+    }
+
+    private final class Flow implements SocketTask {
+
+        private final InetSocketAddress client;
+        private final String id = String.format("@%08x", System.identityHashCode(this));
+        private final long arriveNanos = System.nanoTime();
+        private final long arriveMillis = System.currentTimeMillis();
+        private volatile long lastActiveMillis = System.currentTimeMillis();
+        private State state = State.Parsing;
+        @Nullable
+        private QuicInitial initial;
+        @Nullable
+        private ArrayList<byte[]> pending = new ArrayList<>();
+        @Nullable
+        private String sniName;
+        @Nullable
+        private Socks5UdpAssociation association;
+        private long connectedNanos;
+        // written by the receiver thread and the flow thread respectively, tracked like SNISocket does
+        private long upBytes;
+        private long upTracked;
+        private volatile long downBytes;
+        private long downTracked;
+        @NotNull
+        private AccessLogRecord.Error closeError = AccessLogRecord.Error.None;
+
+        private Flow(@NotNull final InetSocketAddress client) {
+            this.client = client;
+            this.initial = new QuicInitial(config.getHeadBufferSize());
+        }
+
+        @NotNull
+        private String linkName() {
+            return client.getAddress().getHostAddress() + ":" + client.getPort() + " -> " + socket.getLocalPort() + (sniName == null ? "" : " -> " + sniName + ":" + dstPort);
+        }
+
+        /**
+         * Called from the receiver thread only.
+         */
+        private synchronized void fromClient(@NotNull final byte[] data, final int length) {
+            lastActiveMillis = System.currentTimeMillis();
+            packetsUp.increment();
+            bytesUp.add(length);
+            upBytes += length;
+            switch (state) {
+                case Connecting:
+                    // the ClientHello is parsed, the association is just slow: drop, QUIC retransmits what matters
+                    if (pending.size() >= maxPendingDatagrams) {
+                        dropped.increment();
+                        return;
+                    }
+                    pending.add(Arrays.copyOf(data, length));
+                    return;
+                case Parsing:
+                    if (pending.size() >= maxPendingDatagrams) {
+                        error(AccessLogRecord.Reason.Parse, new SNIException("No ClientHello in " + maxPendingDatagrams + " datagrams"));
+                        return;
+                    }
+                    pending.add(Arrays.copyOf(data, length));
+                    try {
+                        initial.add(data, length);
+                        sniName = initial.getServerName();
+                    } catch (IOException e) {
+                        error(AccessLogRecord.Reason.Parse, e);
+                        return;
+                    }
+                    if (sniName == null)
+                        return;
+                    initial = null;
+                    state = State.Connecting;
+                    latency.recordHandshake(System.nanoTime() - arriveNanos);
+                    upstream.getLatency().recordHandshake(System.nanoTime() - arriveNanos);
+                    log("parse");
+                    topSNI.addConnection(sniName);
+                    pool.execute(this);
+                    return;
+                case Open:
+                    try {
+                        association.send(data, length);
+                    } catch (IOException e) {
+                        error(AccessLogRecord.Reason.Upper, e);
+                        return;
+                    }
+                    if (upBytes - upTracked >= TopSNI.byteStep) {
+                        topSNI.addBytes(sniName, upBytes - upTracked);
+                        upTracked = upBytes;
+                    }
+                    return;
+                case Closed:
+                    break;
+            }
+        }
+
+        @Override
+        public void reject() {
+            error(AccessLogRecord.Reason.Reject, new RejectedException("Worker pool saturated"));
+        }
+
+        /**
+         * Sets up the association, then forwards relay datagrams back to the client until the flow closes.
+         */
+        @Override
+        public void run() {
+            final long parsedNanos = System.nanoTime();
+            final ConnectLimiter limiter = upstream.getLimiter();
+            if (limiter != null && !limiter.acquire()) {
+                error(AccessLogRecord.Reason.Connect, new RejectedException("Upstream connect limit reached"));
+                return;
+            }
+            long limiterRtt = -1;
+            boolean limiterTimeout = false;
+            final Socks5UdpAssociation association;
+            try {
+                association = Socks5UdpAssociation.open(proxyAddress, sniName, dstPort, connectTimeoutMillis);
+                connectedNanos = System.nanoTime();
+                limiterRtt = connectedNanos - parsedNanos;
+            } catch (IOException e) {
+                limiterTimeout = e instanceof SocketTimeoutException;
+                error(AccessLogRecord.Reason.Connect, e);
+                return;
+            } finally {
+                if (limiter != null)
+                    limiter.release(limiterRtt, limiterTimeout);
+            }
+            latency.recordConnect(connectedNanos - parsedNanos);
+            upstream.getLatency().recordConnect(connectedNanos - parsedNanos);
+            synchronized (this) {
+                if (state != State.Connecting) {
+                    closeQuietly(association);
+                    return;
+                }
+                this.association = association;
+                try {
+                    for (final byte[] datagram : pending)
+                        association.send(datagram, datagram.length);
+                } catch (IOException e) {
+                    error(AccessLogRecord.Reason.Upper, e);
+                    return;
+                }
+                pending = null;
+                state = State.Open;
+            }
+            opened.increment();
+            log("connect");
+            forwardDown(association);
+        }
+
+        private void forwardDown(@NotNull final Socks5UdpAssociation association) {
+            final byte[] buffer = new byte[maxDatagramSize];
+            final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            boolean firstByte = true;
+            while (true) {
+                final int offset;
+                try {
+                    packet.setLength(buffer.length);
+                    offset = association.receive(packet);
+                } catch (IOException e) {
+                    if (state != State.Closed)
+                        error(AccessLogRecord.Reason.Upper, e);
+                    return;
+                }
+                if (offset < 0) {
+                    dropped.increment();
+                    continue;
+                }
+                if (firstByte) {
+                    firstByte = false;
+                    final long now = System.nanoTime();
+                    latency.recordFirstByte(now - connectedNanos, now - arriveNanos);
+                    upstream.getLatency().recordFirstByte(now - connectedNanos, now - arriveNanos);
+                }
+                final int length = packet.getLength() - offset;
+                try {
+                    socket.send(new DatagramPacket(buffer, offset, length, client));
+                } catch (IOException e) {
+                    error(AccessLogRecord.Reason.Local, e);
+                    return;
+                }
+                lastActiveMillis = System.currentTimeMillis();
+                packetsDown.increment();
+                bytesDown.add(length);
+                downBytes += length;
+                if (downBytes - downTracked >= TopSNI.byteStep) {
+                    topSNI.addBytes(sniName, downBytes - downTracked);
+                    downTracked = downBytes;
+                }
+            }
+        }
+
+        private void error(@NotNull final AccessLogRecord.Reason reason, @NotNull final IOException e) {
+            synchronized (this) {
+                if (state == State.Closed)
+                    return;
+                closeError = SNISocket.toError(e);
+            }
+            failed.increment();
+            System.out.format("quic flows = %d %s %s %s %s: %s\n", flows.size(), id, linkName(), reason.name().toLowerCase(), e.getClass().getName(), e.getMessage());
+            flows.remove(client, this);
+            close(reason, false);
+        }
+
+        private void log(@NotNull final String item) {
+            System.out.format("quic flows = %d %s %s %s\n", flows.size(), id, linkName(), item);
+        }
+
+        private void close(@NotNull final AccessLogRecord.Reason reason) {
+            close(reason, true);
+        }
+
+        /**
+         * @param log whether to log the reason, {@link #error} has logged it already
+         */
+        private void close(@NotNull final AccessLogRecord.Reason reason, final boolean log) {
+            final Socks5UdpAssociation association;
+            synchronized (this) {
+                if (state == State.Closed)
+                    return;
+                state = State.Closed;
+                association = this.association;
+                pending = null;
+                initial = null;
+            }
+            if (log)
+                log(reason.name().toLowerCase());
+            if (sniName != null) {
+                topSNI.addBytes(sniName, upBytes - upTracked);
+                topSNI.addBytes(sniName, downBytes - downTracked);
+            }
+            if (accessLog != null)
+                accessLog.write(new AccessLogRecord(true, client.getAddress(), client.getPort(), socket.getLocalPort(), dstPort, upstream.getName(), sniName,
+                        arriveMillis, System.currentTimeMillis(), upBytes, downBytes, reason, closeError, AccessLogRecord.Direction.None));
+            if (association != null)
+                closeQuietly(association);
+        }
+    }
+
+    @SuppressWarnings("EmptyCatchBlock")
+    private static void closeQuietly(@NotNull final Socks5UdpAssociation association) {
+        try {
+            association.close();
+        } catch (IOException e) {
+        }
+    }
+}
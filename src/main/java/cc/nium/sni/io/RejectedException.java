@@ -0,0 +1,11 @@
+package cc.nium.sni.io;
+
+import java.io.IOException;
+
+@SuppressWarnings("WeakerAccess")
+public final class RejectedException extends IOException {
+
+    public RejectedException(String message) {
+        super(message);
+    }
+}
@@ -1,27 +1,88 @@
 package cc.nium.sni.io;
 
 import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.annotation.Nullable;
 import cc.nium.sni.config.Config;
 import cc.nium.sni.config.ServerConfig;
+import cc.nium.sni.log.AccessLog;
+import cc.nium.sni.stats.ForwarderStats;
+import cc.nium.sni.stats.PhaseLatency;
+import cc.nium.sni.stats.TopSNI;
 import cc.nium.sni.util.ConcurrentHashSet;
+import cc.nium.sni.util.HandoffQueue;
+import cc.nium.sni.util.NamedThreadFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.*;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
-public final class SNIServerSocket implements Closeable {
+public final class SNIServerSocket implements ProxyServer {
 
-    private final ExecutorService pool;
+    private enum RejectPolicy {
+        Close,
+        DiscardOldest,
+    }
+
+    private static final long sweepIntervalMillis = 100;
+    // the rate is not judged before a client had one second to send its ClientHello
+    private static final long rateGraceNanos = 1_000_000_000L;
+    // at most this much is read by the deferring acceptor, the rest of the ClientHello is read by the Initializer
+    private static final int deferReadSize = 1024;
+    // connections accepted per round by the deferring acceptor
+    private static final int deferAcceptBatch = 64;
+
+    private final ThreadPoolExecutor pool;
+    private final HandoffQueue<Runnable> queue;
+    private final int maxQueue;
+    private final RejectPolicy rejectPolicy;
+    private final LongAdder rejected = new LongAdder();
     private final ConcurrentHashSet<SNISocket> allSockets;
+    private final TopSNI topSNI;
+    @Nullable
+    private final AccessLog accessLog;
     private final Config config;
     private final int dstPort;
+    private final int connectTimeoutMillis;
     private final Proxy proxy;
+    private final Upstream upstream;
     private final ServerSocket serverSocket;
+    // only with deferAccept: the listening descriptor and the accepted connections that have not sent data yet
+    private final int listenFd;
+    @Nullable
+    private final ArrayList<Deferred> deferred;
+    @Nullable
+    private final byte[] deferBuffer;
+    private int[] pollFds = new int[16];
+    private int[] pollEvents = new int[16];
+    private final LongAdder silentClosed = new LongAdder();
+    private final LongAdder silentExpired = new LongAdder();
+    private final String name;
+    private final boolean coalesce;
+    private final boolean splice;
+    private final long coalesceDelayNanos;
+    private final int coalesceSegmentSize;
+    private final boolean proxyProtocolIn;
+    private final ProxyProtocol.Version proxyProtocolOut;
+    private final ForwarderStats uploadStats = new ForwarderStats();
+    private final ForwarderStats downloadStats = new ForwarderStats();
+    private final PhaseLatency latency = new PhaseLatency();
+    // connections still reading their ClientHello
+    private final ConcurrentHashSet<SNISocket> handshakes = new ConcurrentHashSet<>();
+    private final long handshakeTimeoutNanos;
+    private final int handshakeMinRate;
+    private final LongAdder expiredTimeout = new LongAdder();
+    private final LongAdder expiredSlow = new LongAdder();
+    private long nextSweepMillis = 0;
 
-    public SNIServerSocket(ExecutorService pool, ConcurrentHashSet<SNISocket> allSockets, Config config, ServerConfig serverConfig) throws IOException {
-        this.pool = pool;
+    public SNIServerSocket(ConcurrentHashSet<SNISocket> allSockets, TopSNI topSNI, @Nullable AccessLog accessLog, Config config, ServerConfig serverConfig) throws IOException {
         this.allSockets = allSockets;
+        this.topSNI = topSNI;
+        this.accessLog = accessLog;
         this.config = config;
 
         final String proxyTypeStr = serverConfig.getProxyType();
@@ -41,6 +102,20 @@ public final class SNIServerSocket implements Closeable {
             throw new RuntimeException("proxyPort " + proxyPort + " out of range: (0, 65535]");
         }
         this.proxy = new Proxy(proxyType, new InetSocketAddress(proxyHost, proxyPort));
+        final ConnectLimiter.Algorithm connectLimiter = ConnectLimiter.parseAlgorithm(serverConfig.getConnectLimiter());
+        final int connectLimitMax = serverConfig.getConnectLimitMax();
+        if (connectLimitMax <= 0) {
+            throw new RuntimeException("connectLimitMax " + connectLimitMax + " out of range: (0, " + Integer.MAX_VALUE + "]");
+        }
+        final int connectQueueMillis = serverConfig.getConnectQueueMillis();
+        if (connectQueueMillis < 0 || connectQueueMillis > 60 * 1000) {
+            throw new RuntimeException("connectQueueMillis " + connectQueueMillis + " out of range: [0, " + 60 * 1000 + "]");
+        }
+        this.connectTimeoutMillis = serverConfig.getConnectTimeoutMillis();
+        if (connectTimeoutMillis <= 0 || connectTimeoutMillis > 600 * 1000) {
+            throw new RuntimeException("connectTimeoutMillis " + connectTimeoutMillis + " out of range: (0, " + 600 * 1000 + "]");
+        }
+        this.upstream = Upstream.of(proxy, connectLimiter, connectLimitMax, connectQueueMillis);
 
         final String bindHostStr = serverConfig.getBindHost();
         final InetAddress bindHost = InetAddress.getByName(bindHostStr);
@@ -50,27 +125,221 @@ public final class SNIServerSocket implements Closeable {
         }
         serverSocket = new ServerSocket(bindPort, 50, bindHost);
         serverSocket.setSoTimeout(10);
+        // waiting for data needs poll(2) on plain sockets: forwarders must get plain sockets, not channel adaptors,
+        // whose timed reads hold the channel's blocking lock on Java 8 and would stall writes from the other direction
+        final int listenFd = serverConfig.isDeferAccept() && Splice.isAvailable() ? Splice.serverFd(serverSocket) : -1;
+        if (serverConfig.isDeferAccept() && listenFd < 0)
+            System.err.println("deferred accept unavailable without libsniproxy, accepting immediately");
+        final boolean deferAccept = listenFd >= 0;
+        this.listenFd = listenFd;
+        this.deferred = deferAccept ? new ArrayList<>() : null;
+        this.deferBuffer = deferAccept ? new byte[Math.min(deferReadSize, config.getHeadBufferSize() + 5)] : null;
 
         this.dstPort = serverConfig.getDstPort();
         if (dstPort <= 0 || dstPort > 65535) {
             throw new RuntimeException("dstPort " + dstPort + " out of range: (0, 65535]");
         }
 
+        final String forwardMode = serverConfig.getForwardMode();
+        if ("direct".equalsIgnoreCase(forwardMode)) {
+            coalesce = false;
+        } else if ("coalesce".equalsIgnoreCase(forwardMode)) {
+            coalesce = true;
+        } else {
+            throw new RuntimeException("unknown forward mode: \"" + forwardMode + "\", available: [\"direct\", \"coalesce\"]");
+        }
+        final String transport = serverConfig.getTransport();
+        if ("java".equalsIgnoreCase(transport)) {
+            splice = false;
+        } else if ("splice".equalsIgnoreCase(transport)) {
+            splice = Splice.isAvailable();
+        } else {
+            throw new RuntimeException("unknown transport: \"" + transport + "\", available: [\"java\", \"splice\"]");
+        }
+        final int coalesceDelayMicros = serverConfig.getCoalesceDelayMicros();
+        if (coalesceDelayMicros < 0 || coalesceDelayMicros > 1000 * 1000) {
+            throw new RuntimeException("coalesceDelayMicros " + coalesceDelayMicros + " out of range: [0, " + 1000 * 1000 + "]");
+        }
+        this.coalesceDelayNanos = coalesceDelayMicros * 1000L;
+        this.coalesceSegmentSize = serverConfig.getCoalesceSegmentSize();
+        if (coalesceSegmentSize <= 0) {
+            throw new RuntimeException("coalesceSegmentSize " + coalesceSegmentSize + " out of range: (0, " + Integer.MAX_VALUE + "]");
+        }
+        final int handshakeTimeoutMillis = serverConfig.getHandshakeTimeoutMillis();
+        if (handshakeTimeoutMillis <= 0 || handshakeTimeoutMillis > 3600 * 1000) {
+            throw new RuntimeException("handshakeTimeoutMillis " + handshakeTimeoutMillis + " out of range: (0, " + 3600 * 1000 + "]");
+        }
+        this.handshakeTimeoutNanos = handshakeTimeoutMillis * 1_000_000L;
+        this.handshakeMinRate = serverConfig.getHandshakeMinRate();
+        if (handshakeMinRate < 0) {
+            throw new RuntimeException("handshakeMinRate " + handshakeMinRate + " out of range: [0, " + Integer.MAX_VALUE + "]");
+        }
+        this.proxyProtocolIn = serverConfig.isProxyProtocolIn();
+        this.proxyProtocolOut = ProxyProtocol.parseVersion(serverConfig.getProxyProtocolOut());
+        this.name = bindHostStr + ":" + bindPort;
+
+        final int maxThreads = serverConfig.getMaxThreads();
+        if (maxThreads <= 0) {
+            throw new RuntimeException("maxThreads " + maxThreads + " out of range: (0, " + Integer.MAX_VALUE + "]");
+        }
+        this.maxQueue = serverConfig.getMaxQueue();
+        if (maxQueue < 0) {
+            throw new RuntimeException("maxQueue " + maxQueue + " out of range: [0, " + Integer.MAX_VALUE + "]");
+        }
+        final String rejectPolicyStr = serverConfig.getRejectPolicy();
+        if ("close".equalsIgnoreCase(rejectPolicyStr)) {
+            rejectPolicy = RejectPolicy.Close;
+        } else if ("discard-oldest".equalsIgnoreCase(rejectPolicyStr)) {
+            rejectPolicy = RejectPolicy.DiscardOldest;
+        } else {
+            throw new RuntimeException("unknown reject policy: \"" + rejectPolicyStr + "\", available: [\"close\", \"discard-oldest\"]");
+        }
+        // no core threads: idle threads are reused first, the pool grows before queueing and shrinks when idle
+        queue = new HandoffQueue<>(maxQueue);
+        pool = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, queue,
+                new NamedThreadFactory("sni-" + bindPort), new Rejection());
+
         System.out.println("proxyType = " + proxyTypeStr);
         System.out.println("proxyHost = " + proxyHostStr);
         System.out.println("proxyPort = " + proxyPort);
         System.out.println("bindHost  = " + bindHostStr);
         System.out.println("bindPort  = " + bindPort);
         System.out.println("dstPort   = " + dstPort);
+        System.out.println("transport = " + (splice ? "splice" : "java"));
+        System.out.println("forward   = " + forwardMode + (coalesce ? " (" + coalesceDelayMicros + "us, " + coalesceSegmentSize + " bytes)" : ""));
+        System.out.println("proxyProtocol in = " + proxyProtocolIn + ", out = " + proxyProtocolOut.toString().toLowerCase());
+        System.out.println("connect   = " + (connectLimiter == null ? "unlimited" : connectLimiter.toString().toLowerCase() + " limit <= " + connectLimitMax + ", queue " + connectQueueMillis + "ms") + ", timeout " + connectTimeoutMillis + "ms");
+        System.out.println("handshake = " + handshakeTimeoutMillis + "ms" + (handshakeMinRate == 0 ? "" : ", >= " + handshakeMinRate + " B/s") + (deferAccept ? ", deferred accept" : ""));
+        System.out.println("pool      = " + maxThreads + " threads, " + maxQueue + " queued, reject " + rejectPolicyStr);
         System.out.println("========================================");
     }
 
+    @Override
     @SuppressWarnings("EmptyCatchBlock")
     public void accept() throws IOException {
+        if (deferred != null) {
+            acceptDeferred();
+        } else {
+            try {
+                final SNISocket socket = new SNISocket(this, config, dstPort, proxy, serverSocket.accept(), null, System.nanoTime(), System.currentTimeMillis());
+                pool.execute(socket.getInitializer());
+            } catch (SocketTimeoutException e) {
+            }
+        }
+        sweepHandshakes();
+    }
+
+    /**
+     * Polls the listening socket and the accepted connections, and starts an {@link SNISocket} only for those that have sent data,
+     * so port scanners and health checks that connect and never send take neither a thread nor a head buffer.
+     * The first bytes are read here, which also tells a connection closed without data from one that sent some.
+     */
+    private void acceptDeferred() throws IOException {
+        final ArrayList<Deferred> deferred = this.deferred;
+        final int count = deferred.size() + 1;
+        if (pollFds.length < count) {
+            pollFds = Arrays.copyOf(pollFds, Math.max(count, pollFds.length * 2));
+            pollEvents = new int[pollFds.length];
+        }
+        pollFds[0] = listenFd;
+        for (int i = 1; i < count; i++)
+            pollFds[i] = deferred.get(i - 1).fd;
+        if (Splice.poll(pollFds, pollEvents, count, 10) == 0)
+            return;
+        int kept = 0;
+        for (int i = 1; i < count; i++) {
+            final Deferred waiting = deferred.get(i - 1);
+            if (pollEvents[i] == 0 || !readHead(waiting))
+                deferred.set(kept++, waiting);
+        }
+        deferred.subList(kept, deferred.size()).clear();
+        if (pollEvents[0] == 0)
+            return;
+        for (int i = 0; i < deferAcceptBatch; i++) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketTimeoutException e) {
+                return;
+            }
+            // only read once poll reported data, the timeout guards against spurious wakeups
+            socket.setSoTimeout(1);
+            final int fd = Splice.fd(socket);
+            if (fd < 0)
+                start(socket, null, System.nanoTime(), System.currentTimeMillis());
+            else
+                deferred.add(new Deferred(socket, fd));
+            if (Splice.poll(pollFds, pollEvents, 1, 0) == 0)
+                return;
+        }
+    }
+
+    /**
+     * @return false when the connection is still waiting for data
+     */
+    private boolean readHead(@NotNull final Deferred waiting) {
+        int len;
         try {
-            final SNISocket socket = new SNISocket(this, config, dstPort, proxy, serverSocket.accept());
-            pool.execute(socket.getInitializer());
+            len = waiting.socket.getInputStream().read(deferBuffer);
         } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            len = -1;
+        }
+        if (len < 0) {
+            silentClosed.increment();
+            closeQuietly(waiting.socket);
+            return true;
+        }
+        // the connection keeps its accept time, the wait for data counts against the handshake limits
+        start(waiting.socket, Arrays.copyOf(deferBuffer, len), waiting.arriveNanos, waiting.arriveMillis);
+        return true;
+    }
+
+    private void start(@NotNull final Socket localSocket, @Nullable final byte[] head, final long arriveNanos, final long arriveMillis) {
+        try {
+            final SNISocket socket = new SNISocket(this, config, dstPort, proxy, localSocket, head, arriveNanos, arriveMillis);
+            pool.execute(socket.getInitializer());
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeQuietly(localSocket);
+        }
+    }
+
+    /**
+     * Closes connections whose ClientHello is overdue or arrives too slowly, at most every {@link #sweepIntervalMillis}.
+     * One sweep for all connections replaces per-read timeouts, which a client dribbling a byte at a time never trips.
+     */
+    private void sweepHandshakes() {
+        final long nowMillis = System.currentTimeMillis();
+        if (nowMillis < nextSweepMillis)
+            return;
+        nextSweepMillis = nowMillis + sweepIntervalMillis;
+        final long now = System.nanoTime();
+        if (deferred != null) {
+            // a connection that has not sent a byte fails the rate as soon as it is judged
+            deferred.removeIf(waiting -> {
+                final long elapsed = now - waiting.arriveNanos;
+                if (elapsed <= handshakeTimeoutNanos && (handshakeMinRate == 0 || elapsed < rateGraceNanos))
+                    return false;
+                closeQuietly(waiting.socket);
+                silentExpired.increment();
+                return true;
+            });
+        }
+        for (final SNISocket socket : handshakes) {
+            final long elapsed = now - socket.getArriveNanos();
+            if (elapsed > handshakeTimeoutNanos) {
+                if (socket.expire("Handshake not completed in " + handshakeTimeoutNanos / 1_000_000 + "ms"))
+                    expiredTimeout.increment();
+            } else if (handshakeMinRate > 0 && elapsed >= rateGraceNanos) {
+                // a connection still queued for a thread is not reading, only the deadline applies to it
+                final long bytes = socket.getHandshakeBytes();
+                final long rate = bytes * 1_000_000_000L / elapsed;
+                if (bytes >= 0 && rate < handshakeMinRate
+                        && socket.expire("Handshake rate " + rate + " B/s below " + handshakeMinRate + " B/s"))
+                    expiredSlow.increment();
+            }
         }
     }
 
@@ -80,18 +349,160 @@ public final class SNIServerSocket implements Closeable {
 
     void add(SNISocket socket) {
         allSockets.add(socket);
+        handshakes.add(socket);
     }
 
     void remove(SNISocket socket) {
         allSockets.remove(socket);
+        handshakes.remove(socket);
+    }
+
+    void endHandshake(SNISocket socket) {
+        handshakes.remove(socket);
     }
 
     void runForwarder(@NotNull final Forwarder forwarder) {
         pool.execute(forwarder);
     }
 
+    boolean isCoalesce() {
+        return coalesce;
+    }
+
+    boolean isSplice() {
+        return splice;
+    }
+
+    long getCoalesceDelayNanos() {
+        return coalesceDelayNanos;
+    }
+
+    int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    int getCoalesceSegmentSize() {
+        return coalesceSegmentSize;
+    }
+
+    boolean isProxyProtocolIn() {
+        return proxyProtocolIn;
+    }
+
+    @NotNull
+    ProxyProtocol.Version getProxyProtocolOut() {
+        return proxyProtocolOut;
+    }
+
+    @NotNull
+    ForwarderStats getUploadStats() {
+        return uploadStats;
+    }
+
+    @NotNull
+    ForwarderStats getDownloadStats() {
+        return downloadStats;
+    }
+
+    @NotNull
+    TopSNI getTopSNI() {
+        return topSNI;
+    }
+
+    @Nullable
+    AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    @NotNull
+    Upstream getUpstream() {
+        return upstream;
+    }
+
+    void recordHandshake(final long nanos) {
+        latency.recordHandshake(nanos);
+        upstream.getLatency().recordHandshake(nanos);
+    }
+
+    void recordConnect(final long nanos) {
+        latency.recordConnect(nanos);
+        upstream.getLatency().recordConnect(nanos);
+    }
+
+    void recordFirstByte(final long nanos, final long totalNanos) {
+        latency.recordFirstByte(nanos, totalNanos);
+        upstream.getLatency().recordFirstByte(nanos, totalNanos);
+    }
+
+    @Override
+    public void printStats(@NotNull final PrintStream out) {
+        out.println(name + " pool active = " + pool.getActiveCount() + " threads = " + pool.getPoolSize() + "/" + pool.getMaximumPoolSize()
+                + " queued = " + pool.getQueue().size() + "/" + maxQueue + " rejected = " + rejected.sumThenReset());
+        out.println(name + " handshakes = " + handshakes.size() + " expired timeout = " + expiredTimeout.sumThenReset() + " slow = " + expiredSlow.sumThenReset());
+        if (deferred != null) {
+            // stats are printed by the accepting thread, which alone touches the list
+            out.println(name + " deferred waiting = " + deferred.size()
+                    + " never sent data: closed = " + silentClosed.sumThenReset() + " expired = " + silentExpired.sumThenReset());
+        }
+        uploadStats.printAndReset(out, name + " ↑");
+        downloadStats.printAndReset(out, name + " ↓");
+        latency.printAndReset(out, name);
+    }
+
     @Override
     public void close() throws IOException {
         serverSocket.close();
+        if (deferred != null) {
+            for (final Deferred waiting : deferred)
+                closeQuietly(waiting.socket);
+            deferred.clear();
+        }
+        pool.shutdown();
+    }
+
+    @SuppressWarnings("EmptyCatchBlock")
+    private static void closeQuietly(@NotNull final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static final class Deferred {
+        @NotNull
+        private final Socket socket;
+        private final int fd;
+        private final long arriveNanos = System.nanoTime();
+        private final long arriveMillis = System.currentTimeMillis();
+
+        private Deferred(@NotNull final Socket socket, final int fd) {
+            this.socket = socket;
+            this.fd = fd;
+        }
+    }
+
+    private final class Rejection implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(@NotNull final Runnable r, @NotNull final ThreadPoolExecutor executor) {
+            // every thread is busy, wait in the queue if there is room
+            if (!executor.isShutdown() && queue.force(r))
+                return;
+            if (rejectPolicy == RejectPolicy.DiscardOldest && !executor.isShutdown()) {
+                final Runnable oldest = executor.getQueue().poll();
+                if (oldest != null) {
+                    reject(oldest);
+                    executor.execute(r);
+                    return;
+                }
+            }
+            reject(r);
+        }
+
+        private void reject(@NotNull final Runnable r) {
+            rejected.increment();
+            if (r instanceof SocketTask)
+                ((SocketTask) r).reject();
+        }
     }
 }
@@ -3,12 +3,18 @@ package cc.nium.sni.io;
 import cc.nium.sni.annotation.NotNull;
 import cc.nium.sni.annotation.Nullable;
 import cc.nium.sni.config.Config;
+import cc.nium.sni.jfr.ConnectionRecorder;
+import cc.nium.sni.log.AccessLog;
+import cc.nium.sni.log.AccessLogRecord;
+import cc.nium.sni.stats.ForwarderStats;
+import cc.nium.sni.stats.TopSNI;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.*;
+import java.util.concurrent.locks.LockSupport;
 
 public final class SNISocket implements Closeable {
 
@@ -26,9 +32,31 @@ public final class SNISocket implements Closeable {
         Connect,
         Local,
         Upper,
+        Reject,
+        Expire,
         Close,
         ;
 
+        @NotNull
+        AccessLogRecord.Reason toReason() {
+            switch (this) {
+                case Parse:
+                    return AccessLogRecord.Reason.Parse;
+                case Connect:
+                    return AccessLogRecord.Reason.Connect;
+                case Local:
+                    return AccessLogRecord.Reason.Local;
+                case Upper:
+                    return AccessLogRecord.Reason.Upper;
+                case Reject:
+                    return AccessLogRecord.Reason.Reject;
+                case Expire:
+                    return AccessLogRecord.Reason.Expire;
+                default:
+                    return AccessLogRecord.Reason.Close;
+            }
+        }
+
         @NotNull
         @Override
         public String toString() {
@@ -74,28 +102,65 @@ public final class SNISocket implements Closeable {
     }
 
     private static final int soTimeout = 5000;
+    private static final int headInitialCapacity = 1024;
     private final SNIServerSocket server;
     private final Config config;
     private final String id;
     private final int dstPort;
     private final Proxy proxy;
     private final Socket localSocket;
+    // first bytes already read by a deferring acceptor, handed to the head buffer then dropped
+    @Nullable
+    private byte[] head;
     private final InputStream localInputStream;
     private final OutputStream localOutputStream;
     private final Initializer initializer;
     private final Uploader uploader;
     private final Downloader downloader;
+    private final ConnectionRecorder recorder = ConnectionRecorder.create();
+    private final long arriveNanos;
+    private final long arriveMillis;
+    private long connectedNanos;
     private String sniName;
     private String linkName;
+    // the ClientHello being read, watched by the server's handshake sweep
+    @Nullable
+    private volatile ByteTemporaryBuffer headBuffer;
+    private boolean handshakeDone = false;
+    private InetSocketAddress clientAddress;
+    private InetSocketAddress serverAddress;
     private Socket upperSocket;
     private InputStream upperInputStream;
     private OutputStream upperOutputStream;
     private volatile State state = State.UnInitialized;
     private volatile ForwarderState stateUpload = ForwarderState.Running;
     private volatile ForwarderState stateDownload = ForwarderState.Running;
-
-    SNISocket(SNIServerSocket server, Config config, int dstPort, @NotNull final Proxy proxy, @NotNull final Socket localSocket) throws IOException {
+    // why the connection ended, set by error() before close()
+    private AccessLogRecord.Reason closeReason = AccessLogRecord.Reason.Close;
+    private AccessLogRecord.Error closeError = AccessLogRecord.Error.None;
+    private AccessLogRecord.Direction closeDirection = AccessLogRecord.Direction.None;
+    // each has a single writer, the Uploader and the Downloader
+    private volatile long bytesUp = 0;
+    private volatile long bytesDown = 0;
+    // the part of bytesUp / bytesDown already reported to TopSNI, same single writers
+    private long bytesUpTracked = 0;
+    private long bytesDownTracked = 0;
+    // duplicates of the socket descriptors for the splice transport and the forwarders using them, guarded by this
+    private int spliceLocal = -1;
+    private int spliceUpper = -1;
+    private int spliceUsers = 0;
+
+    /**
+     * @param head         bytes the acceptor already read from {@code localSocket}, or null
+     * @param arriveNanos  {@link System#nanoTime} when the connection was accepted, the handshake limits and latencies count from it
+     * @param arriveMillis wall-clock time of the same moment, for the access log
+     */
+    SNISocket(SNIServerSocket server, Config config, int dstPort, @NotNull final Proxy proxy, @NotNull final Socket localSocket, @Nullable final byte[] head,
+              final long arriveNanos, final long arriveMillis) throws IOException {
         this.server = server;
+        this.head = head;
+        this.arriveNanos = arriveNanos;
+        this.arriveMillis = arriveMillis;
         this.config = config;
         this.id = "@" + padding(Integer.toHexString(this.hashCode()));
         this.dstPort = dstPort;
@@ -107,12 +172,15 @@ public final class SNISocket implements Closeable {
         localSocket.setKeepAlive(false);
         localSocket.setTcpNoDelay(true);
         localSocket.setSoLinger(true, 0);
+        clientAddress = (InetSocketAddress) localSocket.getRemoteSocketAddress();
+        serverAddress = (InetSocketAddress) localSocket.getLocalSocketAddress();
         linkName = localSocket.getInetAddress().getHostAddress() + ":" + localSocket.getPort() + " -> " + localSocket.getLocalPort();
         initializer = new Initializer();
         uploader = new Uploader();
         downloader = new Downloader();
         server.add(this);
         log(Item.Arrive);
+        recorder.arrive(getClientName(), localSocket.getLocalPort());
     }
 
     private static String padding(String s) {
@@ -124,6 +192,19 @@ public final class SNISocket implements Closeable {
         return sniName;
     }
 
+    /**
+     * @return the real client, as announced by an inbound PROXY protocol header when enabled
+     */
+    @SuppressWarnings("unused")
+    public InetSocketAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    @NotNull
+    private String getClientName() {
+        return clientAddress.getAddress().getHostAddress() + ":" + clientAddress.getPort();
+    }
+
     @Override
     public synchronized void close() {
         if (state == State.Closed)
@@ -131,6 +212,22 @@ public final class SNISocket implements Closeable {
         state = State.Closed;
         server.remove(this);
         log(Item.Close);
+        recorder.close(bytesUp, bytesDown);
+        // a forwarder still running may report its last step again, the tracker is approximate anyway
+        trackUp(true);
+        trackDown(true);
+        final AccessLog accessLog = server.getAccessLog();
+        if (accessLog != null) {
+            accessLog.write(new AccessLogRecord(false, clientAddress.getAddress(), clientAddress.getPort(), localSocket.getLocalPort(), dstPort,
+                    server.getUpstream().getName(), sniName, arriveMillis, System.currentTimeMillis(), bytesUp, bytesDown, closeReason, closeError, closeDirection));
+        }
+        // the sockets stay open through the duplicates until the last splice forwarder has returned, see releaseSplice()
+        if (spliceUsers > 0) {
+            Splice.shutdown(spliceLocal);
+            Splice.shutdown(spliceUpper);
+        } else {
+            closeSplice();
+        }
         try {
             localSocket.close();
         } catch (IOException e) {
@@ -144,70 +241,121 @@ public final class SNISocket implements Closeable {
         }
     }
 
+    private void trackUp(final boolean force) {
+        final long delta = bytesUp - bytesUpTracked;
+        if (sniName != null && (delta >= TopSNI.byteStep || force && delta > 0)) {
+            server.getTopSNI().addBytes(sniName, delta);
+            bytesUpTracked += delta;
+        }
+    }
+
+    private void trackDown(final boolean force) {
+        final long delta = bytesDown - bytesDownTracked;
+        if (sniName != null && (delta >= TopSNI.byteStep || force && delta > 0)) {
+            server.getTopSNI().addBytes(sniName, delta);
+            bytesDownTracked += delta;
+        }
+    }
+
     @NotNull
     Initializer getInitializer() {
         return initializer;
     }
 
+    long getArriveNanos() {
+        return arriveNanos;
+    }
+
+    /**
+     * @return bytes received so far while the ClientHello is read, -1 before the Initializer starts
+     */
+    int getHandshakeBytes() {
+        final ByteTemporaryBuffer headBuffer = this.headBuffer;
+        return headBuffer == null ? -1 : headBuffer.getCount();
+    }
+
+    /**
+     * Closes the connection if it is still reading the ClientHello.
+     * Closing the local socket wakes the Initializer blocked in a read, which then finds the connection closed.
+     *
+     * @return false when the handshake has completed or the connection is already closed
+     */
+    synchronized boolean expire(@NotNull final String message) {
+        if (handshakeDone || state == State.Closed || state == State.Error)
+            return false;
+        error(Item.Expire, new SocketTimeoutException(message), null);
+        return true;
+    }
+
+    /**
+     * @return false when the handshake was expired meanwhile
+     */
+    private synchronized boolean endHandshake() {
+        if (state != State.Initializing)
+            return false;
+        handshakeDone = true;
+        headBuffer = null;
+        server.endHandshake(this);
+        return true;
+    }
+
     @NotNull
-    private static String parseClientHello(final ByteTemporaryBuffer byteBuffer, final int handshakeLength) throws IOException {
-        final int handshakeType = byteBuffer.read8Bit();
+    static String parseClientHello(final HandshakeReader reader) throws IOException {
+        final int handshakeType = reader.read8Bit();
         if (handshakeType != 0x01)
             throw new SNIException(String.format("Handshake (type = 0x%02x) is not ClientHello, expect 0x01", handshakeType));
-        final int clientHelloLength = byteBuffer.read24Bit();
-        if (handshakeLength != clientHelloLength + 4)
-            throw new SNIException(String.format("Handshake length (%d) not match ClientHello length (%d) + 4", handshakeLength, clientHelloLength));
-        final int clientHelloStartIndex = byteBuffer.getReadIndex();
-        @SuppressWarnings("unused") final int version = byteBuffer.read16Bit();
+        final int clientHelloLength = reader.read24Bit();
+        final int clientHelloStartIndex = reader.getPosition();
+        @SuppressWarnings("unused") final int version = reader.read16Bit();
         // skip random bytes
-        byteBuffer.skipLength(32);
+        reader.skipLength(32);
 
-        final int sessionIdLength = byteBuffer.read8Bit();
+        final int sessionIdLength = reader.read8Bit();
         // skip session id
-        byteBuffer.skipLength(sessionIdLength);
+        reader.skipLength(sessionIdLength);
 
-        final int cipherSuitesLength = byteBuffer.read16Bit();
+        final int cipherSuitesLength = reader.read16Bit();
         // skip cipher suites
-        byteBuffer.skipLength(cipherSuitesLength);
+        reader.skipLength(cipherSuitesLength);
 
-        final int compressionMethodsLength = byteBuffer.read8Bit();
+        final int compressionMethodsLength = reader.read8Bit();
         // skip compression methods
-        byteBuffer.skipLength(compressionMethodsLength);
+        reader.skipLength(compressionMethodsLength);
 
-        final int extensionsLength = byteBuffer.read16Bit();
-        if (byteBuffer.getReadIndex() - clientHelloStartIndex + extensionsLength > clientHelloLength) {
+        final int extensionsLength = reader.read16Bit();
+        if (reader.getPosition() - clientHelloStartIndex + extensionsLength > clientHelloLength) {
             throw new SNIException("Extensions out of bounds");
         }
-        final int extensionsStartIndex = byteBuffer.getReadIndex();
+        final int extensionsStartIndex = reader.getPosition();
         if (extensionsLength > 0) {
-            while (byteBuffer.getReadIndex() - extensionsStartIndex < extensionsLength) {
-                final int extensionType = byteBuffer.read16Bit();
-                final int extensionLength = byteBuffer.read16Bit();
-                if (byteBuffer.getReadIndex() - extensionsStartIndex + extensionLength > extensionsLength) {
+            while (reader.getPosition() - extensionsStartIndex < extensionsLength) {
+                final int extensionType = reader.read16Bit();
+                final int extensionLength = reader.read16Bit();
+                if (reader.getPosition() - extensionsStartIndex + extensionLength > extensionsLength) {
                     throw new SNIException("Extension out of bounds");
                 }
                 if (extensionType == 0) {// ServerName Extension
-                    final int serverNameListLength = byteBuffer.read16Bit();
+                    final int serverNameListLength = reader.read16Bit();
                     if (extensionLength != serverNameListLength + 2) {
                         throw new SNIException(String.format("Extension length (%d) not match ServerNameList length (%d) + 2", extensionLength, serverNameListLength));
                     }
-                    final int serverNameStartIndex = byteBuffer.getReadIndex();
-                    while (byteBuffer.getReadIndex() - serverNameStartIndex < serverNameListLength) {
-                        final int serverNameType = byteBuffer.read8Bit();
-                        final int serverNameLength = byteBuffer.read16Bit();
-                        if (byteBuffer.getReadIndex() - serverNameStartIndex + serverNameLength > serverNameListLength) {
+                    final int serverNameStartIndex = reader.getPosition();
+                    while (reader.getPosition() - serverNameStartIndex < serverNameListLength) {
+                        final int serverNameType = reader.read8Bit();
+                        final int serverNameLength = reader.read16Bit();
+                        if (reader.getPosition() - serverNameStartIndex + serverNameLength > serverNameListLength) {
                             throw new SNIException("ServerName out of bounds");
                         }
                         if (serverNameType == 0 && serverNameLength > 0) {
-                            return byteBuffer.readString(serverNameLength);
+                            return reader.readString(serverNameLength);
                         } else {
                             // skip other type ServerName
-                            byteBuffer.skipLength(serverNameLength);
+                            reader.skipLength(serverNameLength);
                         }
                     }
                 } else {
                     // skip other type Extension
-                    byteBuffer.skipLength(extensionLength);
+                    reader.skipLength(extensionLength);
                 }
             }
         }
@@ -218,12 +366,29 @@ public final class SNISocket implements Closeable {
         if (state == State.Closed)
             return;
         state = State.Error;
+        closeReason = item.toReason();
+        closeError = toError(e);
+        closeDirection = direction == null ? AccessLogRecord.Direction.None : direction == Direction.Up ? AccessLogRecord.Direction.Up : AccessLogRecord.Direction.Down;
+        recorder.error(item.toString(), direction == null ? null : direction.name(), e);
         System.out.format("connections count = %d %s %s %s %s %s: %s\n", server.getConnectionNum(), id, linkName, item, Direction.toString(direction), e.getClass().getName(), e.getMessage());
-        if (!(e instanceof SocketException || e instanceof SocketTimeoutException || e instanceof SNIException))
+        if (!(e instanceof SocketException || e instanceof SocketTimeoutException || e instanceof SNIException || e instanceof RejectedException))
             e.printStackTrace();
         close();
     }
 
+    @NotNull
+    static AccessLogRecord.Error toError(@NotNull final IOException e) {
+        if (e instanceof SocketTimeoutException)
+            return AccessLogRecord.Error.Timeout;
+        if (e instanceof SocketException)
+            return AccessLogRecord.Error.Socket;
+        if (e instanceof SNIException)
+            return AccessLogRecord.Error.Protocol;
+        if (e instanceof RejectedException)
+            return AccessLogRecord.Error.Rejected;
+        return AccessLogRecord.Error.Other;
+    }
+
     private void log(@NotNull final Item item) {
         System.out.format("connections count = %d %s %s %s\n", server.getConnectionNum(), id, linkName, item);
     }
@@ -232,6 +397,131 @@ public final class SNISocket implements Closeable {
         System.out.format("connections count = %d %s %s %s %s %s\n", server.getConnectionNum(), id, linkName, item, Direction.toString(direction), forwarderState);
     }
 
+    /**
+     * splice(2) version of the forwarder loops, moving bytes in {@code direction} until the connection closes.
+     *
+     * @return false when the transport cannot be set up and the java loop must be used instead
+     */
+    private boolean runSplice(@NotNull final Direction direction, final int max, @NotNull final ForwarderStats stats) {
+        final int[] fds = acquireSplice();
+        if (fds == null)
+            return false;
+        final boolean up = direction == Direction.Up;
+        final Item item = up ? Item.Local : Item.Upper;
+        final int in = up ? fds[0] : fds[1];
+        final int out = up ? fds[1] : fds[0];
+        final long pipe;
+        try {
+            pipe = Splice.pipe(max);
+        } catch (IOException e) {
+            releaseSplice();
+            return false;
+        }
+        try {
+            boolean firstByte = !up;
+            while (true) {
+                final int len;
+                try {
+                    len = Splice.transfer(in, out, pipe, max, soTimeout);
+                } catch (IOException e) {
+                    error(item, e, direction);
+                    return true;
+                }
+                if (len == Splice.resultEof || len == Splice.resultTimeout) {
+                    if (checkSplice(in, item))
+                        return true;
+                    if (len == Splice.resultTimeout)
+                        forwarderState(direction, ForwarderState.Idle);
+                } else {
+                    if (firstByte) {
+                        firstByte = false;
+                        final long now = System.nanoTime();
+                        server.recordFirstByte(now - connectedNanos, now - arriveNanos);
+                    }
+                    forwarderState(direction, ForwarderState.Running);
+                    stats.read();
+                    stats.write(len);
+                    if (up) {
+                        bytesUp += len;
+                        trackUp(false);
+                    } else {
+                        bytesDown += len;
+                        trackDown(false);
+                    }
+                }
+            }
+        } finally {
+            Splice.closePipe(pipe);
+            releaseSplice();
+        }
+    }
+
+    /**
+     * @return the duplicated (local, upper) descriptors, null when the connection is closing or they cannot be had
+     */
+    @Nullable
+    private synchronized int[] acquireSplice() {
+        if (state == State.Error || state == State.Closed)
+            return null;
+        if (spliceLocal < 0) {
+            final int local = Splice.fd(localSocket);
+            final int upper = Splice.fd(upperSocket);
+            if (local < 0 || upper < 0)
+                return null;
+            try {
+                spliceLocal = Splice.dup(local);
+            } catch (IOException e) {
+                return null;
+            }
+            try {
+                spliceUpper = Splice.dup(upper);
+            } catch (IOException e) {
+                Splice.close(spliceLocal);
+                spliceLocal = -1;
+                return null;
+            }
+        }
+        spliceUsers++;
+        return new int[]{spliceLocal, spliceUpper};
+    }
+
+    private synchronized void releaseSplice() {
+        if (--spliceUsers == 0 && state == State.Closed)
+            closeSplice();
+    }
+
+    private void closeSplice() {
+        if (spliceLocal < 0)
+            return;
+        Splice.close(spliceLocal);
+        Splice.close(spliceUpper);
+        spliceLocal = -1;
+        spliceUpper = -1;
+    }
+
+    private boolean checkSplice(final int fd, @NotNull final Item item) {
+        try {
+            Splice.sendUrgentData(fd);
+            return false;
+        } catch (IOException e) {
+            error(item, e, null);
+            return true;
+        }
+    }
+
+    private void forwarderState(@NotNull final Direction direction, @NotNull final ForwarderState next) {
+        final boolean up = direction == Direction.Up;
+        if ((up ? stateUpload : stateDownload) != next) {
+            log(up ? Item.Local : Item.Upper, direction, next);
+            recorder.forwarderState(direction.name(), next.toString(), up ? bytesUp : bytesDown);
+        }
+        if (up) {
+            stateUpload = next;
+        } else {
+            stateDownload = next;
+        }
+    }
+
     private boolean checkLocal() {
         try {
             localSocket.sendUrgentData(0);
@@ -252,27 +542,91 @@ public final class SNISocket implements Closeable {
         }
     }
 
-    class Initializer implements Runnable {
+    /**
+     * Appends whatever is already readable to {@code buffer} so that back-to-back small reads go out as one write.
+     * While the pending segment is smaller than {@code coalesceSegmentSize}, waits up to {@code coalesceDelayNanos} for more.
+     */
+    private int coalesce(@NotNull final InputStream inputStream, @NotNull final byte[] buffer, int len, @NotNull final ForwarderStats stats) throws IOException {
+        long deadline = 0;
+        while (len < buffer.length) {
+            final int available = inputStream.available();
+            stats.poll();
+            if (available > 0) {
+                final int n = inputStream.read(buffer, len, Math.min(available, buffer.length - len));
+                if (n <= 0)
+                    break;
+                stats.read();
+                len += n;
+                continue;
+            }
+            if (len >= server.getCoalesceSegmentSize())
+                break;
+            final long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + server.getCoalesceDelayNanos();
+            } else if (now - deadline >= 0) {
+                break;
+            }
+            LockSupport.parkNanos(deadline - now);
+        }
+        return len;
+    }
+
+    private void rejected() {
+        error(Item.Reject, new RejectedException("Worker pool saturated"), null);
+    }
+
+    class Initializer implements SocketTask {
+
+        @Override
+        public void reject() {
+            rejected();
+        }
 
         @Override
         public void run() {
-            if (state != State.UnInitialized)
-                return;
-            state = State.Initializing;
+            // a connection expired while queued must stay closed
+            synchronized (SNISocket.this) {
+                if (state != State.UnInitialized)
+                    return;
+                state = State.Initializing;
+            }
+            recorder.beginParse();
             final int headMaxLength = config.getHeadBufferSize();
-            try (final ByteTemporaryBuffer byteBuffer = new ByteTemporaryBuffer(localInputStream, SNISocket.this::checkLocal, headMaxLength + 5)) {// 5 bytes for (protocol, version, length) bytes
-                final int protocol = byteBuffer.read8Bit();
-                if (protocol != 0x16)
-                    throw new SNIException(String.format("First byte is 0x%02x, not a TLS Handshake, ", protocol));
-                @SuppressWarnings("unused") final int subVersion = byteBuffer.read8Bit();
-                @SuppressWarnings("unused") final int mainVersion = byteBuffer.read8Bit();
-                final int handshakeLength = byteBuffer.read16Bit();
-                if (handshakeLength > headMaxLength) {
-                    throw new SNIException(String.format("Handshake too long: %d, buffer max size is %d", handshakeLength, headMaxLength));
+            // 5 bytes for (protocol, version, length) bytes, the buffer grows as records arrive
+            try (final ByteTemporaryBuffer byteBuffer = new ByteTemporaryBuffer(localInputStream, SNISocket.this::checkLocal, headInitialCapacity, headMaxLength + 5)) {
+                headBuffer = byteBuffer;
+                if (head != null) {
+                    byteBuffer.prefill(head);
+                    head = null;
+                }
+                if (server.isProxyProtocolIn()) {
+                    final ProxyProtocol.Header header = ProxyProtocol.read(byteBuffer);
+                    // the PROXY header is for us only, never replay it upstream
+                    byteBuffer.discardRead();
+                    if (header.getSource() != null && header.getDestination() != null) {
+                        clientAddress = header.getSource();
+                        serverAddress = header.getDestination();
+                        linkName = clientAddress.getAddress().getHostAddress() + ":" + clientAddress.getPort() + " -> " + localSocket.getLocalPort();
+                    }
                 }
-                final String sniName = SNISocket.this.sniName = parseClientHello(byteBuffer, handshakeLength);
+                final String sniName = SNISocket.this.sniName = parseClientHello(new HandshakeReader(byteBuffer));
+                if (!endHandshake())
+                    return;
                 linkName += " -> " + sniName + ":" + dstPort;
+                final long parsedNanos = System.nanoTime();
+                server.recordHandshake(parsedNanos - arriveNanos);
                 log(Item.Parse);
+                server.getTopSNI().addConnection(sniName);
+                recorder.endParse(getClientName(), sniName, byteBuffer.getReadIndex());
+                recorder.beginConnect();
+                final ConnectLimiter limiter = server.getUpstream().getLimiter();
+                if (limiter != null && !limiter.acquire()) {
+                    error(Item.Connect, new RejectedException("Upstream connect limit reached"), null);
+                    return;
+                }
+                long limiterRtt = -1;
+                boolean limiterTimeout = false;
                 try {
                     upperSocket = new Socket(proxy);
                     upperSocket.setSoTimeout(soTimeout);
@@ -280,14 +634,25 @@ public final class SNISocket implements Closeable {
                     upperSocket.setTcpNoDelay(true);
                     upperSocket.setSoLinger(true, 0);
                     final InetSocketAddress dest = InetSocketAddress.createUnresolved(sniName, dstPort);
-                    upperSocket.connect(dest);
+                    final long connectNanos = System.nanoTime();
+                    // a timeout is the limiter's overload signal, without one a blackholed upstream holds a permit for the OS SYN timeout
+                    upperSocket.connect(dest, server.getConnectTimeoutMillis());
+                    connectedNanos = System.nanoTime();
+                    limiterRtt = connectedNanos - connectNanos;
+                    server.recordConnect(connectedNanos - parsedNanos);
                     upperInputStream = upperSocket.getInputStream();
                     upperOutputStream = upperSocket.getOutputStream();
-                    byteBuffer.transferBufferToAndClose(upperOutputStream);
+                    final ProxyProtocol.Version proxyProtocolOut = server.getProxyProtocolOut();
+                    bytesUp += byteBuffer.transferBufferToAndClose(upperOutputStream, proxyProtocolOut == ProxyProtocol.Version.None ? null : ProxyProtocol.encode(proxyProtocolOut, clientAddress, serverAddress));
                     log(Item.Connect);
+                    recorder.endConnect(server.getUpstream().getName());
                 } catch (IOException e) {
+                    limiterTimeout = e instanceof SocketTimeoutException;
                     error(Item.Connect, e, null);
                     return;
+                } finally {
+                    if (limiter != null)
+                        limiter.release(limiterRtt, limiterTimeout);
                 }
             } catch (IOException e) {
                 error(Item.Parse, e, null);
@@ -303,23 +668,40 @@ public final class SNISocket implements Closeable {
     public class Uploader implements Forwarder {
         private final byte[] buffer = new byte[config.getForwarderBufferSize()];
 
+        @Override
+        public void reject() {
+            rejected();
+        }
+
         @Override
         public void run() {
             if (state != State.Normal)
                 return;
+            final ForwarderStats stats = server.getUploadStats();
+            if (server.isSplice() && runSplice(Direction.Up, buffer.length, stats))
+                return;
+            final boolean coalesce = server.isCoalesce();
             while (true) {
                 try {
-                    final int len = localInputStream.read(buffer);
+                    int len = localInputStream.read(buffer);
+                    stats.read();
                     if (len < 0) {
                         if (checkLocal())
                             return;
                     } else {
-                        if (stateUpload == ForwarderState.Idle)
+                        if (stateUpload == ForwarderState.Idle) {
                             log(Item.Local, Direction.Up, ForwarderState.Running);
+                            recorder.forwarderState(Direction.Up.name(), ForwarderState.Running.toString(), bytesUp);
+                        }
                         stateUpload = ForwarderState.Running;
+                        if (coalesce)
+                            len = coalesce(localInputStream, buffer, len, stats);
                         try {
+                            // socket streams are unbuffered, so no flush() is needed after write
                             upperOutputStream.write(buffer, 0, len);
-                            upperOutputStream.flush();
+                            stats.write(len);
+                            bytesUp += len;
+                            trackUp(false);
                         } catch (IOException e) {
                             error(Item.Upper, e, Direction.Up);
                             return;
@@ -328,8 +710,10 @@ public final class SNISocket implements Closeable {
                 } catch (SocketTimeoutException e) {
                     if (checkLocal())
                         return;
-                    if (stateUpload == ForwarderState.Running)
+                    if (stateUpload == ForwarderState.Running) {
                         log(Item.Local, Direction.Up, ForwarderState.Idle);
+                        recorder.forwarderState(Direction.Up.name(), ForwarderState.Idle.toString(), bytesUp);
+                    }
                     stateUpload = ForwarderState.Idle;
                 } catch (IOException e) {
                     error(Item.Local, e, Direction.Up);
@@ -342,23 +726,46 @@ public final class SNISocket implements Closeable {
     public class Downloader implements Forwarder {
         private final byte[] buffer = new byte[config.getForwarderBufferSize()];
 
+        @Override
+        public void reject() {
+            rejected();
+        }
+
         @Override
         public void run() {
             if (state != State.Normal)
                 return;
+            final ForwarderStats stats = server.getDownloadStats();
+            if (server.isSplice() && runSplice(Direction.Down, buffer.length, stats))
+                return;
+            final boolean coalesce = server.isCoalesce();
+            boolean firstByte = true;
             while (true) {
                 try {
-                    final int len = upperInputStream.read(buffer);
+                    int len = upperInputStream.read(buffer);
+                    stats.read();
                     if (len < 0) {
                         if (checkUpper())
                             return;
                     } else {
-                        if (stateDownload == ForwarderState.Idle)
+                        if (firstByte) {
+                            firstByte = false;
+                            final long now = System.nanoTime();
+                            server.recordFirstByte(now - connectedNanos, now - arriveNanos);
+                        }
+                        if (stateDownload == ForwarderState.Idle) {
                             log(Item.Upper, Direction.Down, ForwarderState.Running);
+                            recorder.forwarderState(Direction.Down.name(), ForwarderState.Running.toString(), bytesDown);
+                        }
                         stateDownload = ForwarderState.Running;
+                        if (coalesce)
+                            len = coalesce(upperInputStream, buffer, len, stats);
                         try {
+                            // socket streams are unbuffered, so no flush() is needed after write
                             localOutputStream.write(buffer, 0, len);
-                            localOutputStream.flush();
+                            stats.write(len);
+                            bytesDown += len;
+                            trackDown(false);
                         } catch (IOException e) {
                             error(Item.Local, e, Direction.Down);
                             return;
@@ -367,8 +774,10 @@ public final class SNISocket implements Closeable {
                 } catch (SocketTimeoutException e) {
                     if (checkUpper())
                         return;
-                    if (stateDownload == ForwarderState.Running)
+                    if (stateDownload == ForwarderState.Running) {
                         log(Item.Upper, Direction.Down, ForwarderState.Idle);
+                        recorder.forwarderState(Direction.Down.name(), ForwarderState.Idle.toString(), bytesDown);
+                    }
                     stateDownload = ForwarderState.Idle;
                 } catch (IOException e) {
                     error(Item.Upper, e, Direction.Down);
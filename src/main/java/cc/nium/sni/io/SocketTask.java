@@ -0,0 +1,12 @@
+package cc.nium.sni.io;
+
+/**
+ * Work submitted to a server's pool on behalf of one {@link SNISocket}.
+ */
+public interface SocketTask extends Runnable {
+
+    /**
+     * Called instead of {@link #run()} when the pool is saturated, the connection must be dropped.
+     */
+    void reject();
+}
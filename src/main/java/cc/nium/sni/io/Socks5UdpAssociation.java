@@ -0,0 +1,181 @@
+package cc.nium.sni.io;
+
+import cc.nium.sni.annotation.NotNull;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A SOCKS5 UDP ASSOCIATE session (RFC 1928, no authentication): the TCP control connection that keeps the association alive,
+ * and a datagram socket connected to the relay address the proxy handed out.
+ * Datagrams to the relay carry a header naming the destination, here always the SNI host name, so the proxy resolves it.
+ * The association ends when the control connection closes, {@link #receive} watches it at least every {@link #controlCheckMillis}.
+ */
+final class Socks5UdpAssociation implements Closeable {
+
+    private static final int version = 0x05;
+    private static final int commandUdpAssociate = 0x03;
+    private static final int addressIPv4 = 0x01;
+    private static final int addressDomain = 0x03;
+    private static final int addressIPv6 = 0x04;
+    private static final int controlCheckMillis = 1000;
+
+    @NotNull
+    private final Socket control;
+    @NotNull
+    private final DatagramSocket relay;
+    @NotNull
+    private final byte[] header;
+    private final byte[] controlBuffer = new byte[64];
+    private long nextControlCheckMillis = 0;
+
+    private Socks5UdpAssociation(@NotNull final Socket control, @NotNull final DatagramSocket relay, @NotNull final byte[] header) {
+        this.control = control;
+        this.relay = relay;
+        this.header = header;
+    }
+
+    @NotNull
+    static Socks5UdpAssociation open(@NotNull final InetSocketAddress proxy, @NotNull final String host, final int port, final int timeoutMillis) throws IOException {
+        final byte[] hostBytes = host.getBytes(StandardCharsets.US_ASCII);
+        if (hostBytes.length > 255)
+            throw new SNIException("ServerName length (" + hostBytes.length + ") out of range: (0, 255]");
+        final Socket control = new Socket();
+        try {
+            control.setSoTimeout(timeoutMillis);
+            control.setTcpNoDelay(true);
+            control.connect(proxy, timeoutMillis);
+            final InputStream in = control.getInputStream();
+            final OutputStream out = control.getOutputStream();
+            out.write(new byte[]{version, 1, 0x00});
+            final DataInputStream reply = new DataInputStream(in);
+            if (reply.readUnsignedByte() != version || reply.readUnsignedByte() != 0x00)
+                throw new SocketException("SOCKS5 proxy refused the no-authentication method");
+            // DST.ADDR 0.0.0.0:0, the client address is not known before the relay socket sends
+            out.write(new byte[]{version, commandUdpAssociate, 0x00, addressIPv4, 0, 0, 0, 0, 0, 0});
+            if (reply.readUnsignedByte() != version)
+                throw new SocketException("Malformed SOCKS5 reply");
+            final int status = reply.readUnsignedByte();
+            if (status != 0x00)
+                throw new SocketException(String.format("SOCKS5 UDP ASSOCIATE failed, reply 0x%02x", status));
+            reply.readUnsignedByte();
+            InetAddress relayAddress = readAddress(reply);
+            final int relayPort = reply.readUnsignedShort();
+            if (relayAddress.isAnyLocalAddress())
+                relayAddress = proxy.getAddress();
+            final DatagramSocket relay = new DatagramSocket();
+            relay.connect(new InetSocketAddress(relayAddress, relayPort));
+            // wake receive() now and then to look at the control connection even while the relay is silent
+            relay.setSoTimeout(controlCheckMillis);
+            final byte[] header = new byte[4 + 1 + hostBytes.length + 2];
+            header[3] = addressDomain;
+            header[4] = (byte) hostBytes.length;
+            System.arraycopy(hostBytes, 0, header, 5, hostBytes.length);
+            header[header.length - 2] = (byte) (port >> 8);
+            header[header.length - 1] = (byte) port;
+            // the control connection is only polled from now on
+            control.setSoTimeout(1);
+            return new Socks5UdpAssociation(control, relay, header);
+        } catch (IOException | RuntimeException e) {
+            control.close();
+            throw e;
+        }
+    }
+
+    @NotNull
+    private static InetAddress readAddress(@NotNull final DataInputStream in) throws IOException {
+        final int type = in.readUnsignedByte();
+        final byte[] address;
+        switch (type) {
+            case addressIPv4:
+                address = new byte[4];
+                break;
+            case addressIPv6:
+                address = new byte[16];
+                break;
+            case addressDomain:
+                final byte[] name = new byte[in.readUnsignedByte()];
+                in.readFully(name);
+                return InetAddress.getByName(new String(name, StandardCharsets.US_ASCII));
+            default:
+                throw new SocketException(String.format("Unknown SOCKS5 address type 0x%02x", type));
+        }
+        in.readFully(address);
+        return InetAddress.getByAddress(address);
+    }
+
+    /**
+     * Sends a client datagram to the destination through the relay.
+     */
+    void send(@NotNull final byte[] data, final int length) throws IOException {
+        final byte[] packet = new byte[header.length + length];
+        System.arraycopy(header, 0, packet, 0, header.length);
+        System.arraycopy(data, 0, packet, header.length, length);
+        relay.send(new DatagramPacket(packet, packet.length));
+    }
+
+    /**
+     * Blocks for the next datagram from the relay and locates the payload behind its SOCKS5 header.
+     *
+     * @return offset of the payload in {@code packet}, or -1 for a fragmented or malformed datagram that must be dropped
+     * @throws SocketException when the control connection has closed, which ends the association
+     */
+    int receive(@NotNull final DatagramPacket packet) throws IOException {
+        while (true) {
+            try {
+                relay.receive(packet);
+            } catch (SocketTimeoutException e) {
+                checkControl();
+                continue;
+            }
+            if (System.currentTimeMillis() >= nextControlCheckMillis)
+                checkControl();
+            break;
+        }
+        final byte[] data = packet.getData();
+        final int length = packet.getLength();
+        // RSV (2), FRAG (1), ATYP (1), fragments are never reassembled
+        if (length < 4 || data[2] != 0)
+            return -1;
+        final int offset;
+        switch (data[3]) {
+            case addressIPv4:
+                offset = 4 + 4 + 2;
+                break;
+            case addressIPv6:
+                offset = 4 + 16 + 2;
+                break;
+            case addressDomain:
+                offset = length < 5 ? Integer.MAX_VALUE : 4 + 1 + (data[4] & 0xFF) + 2;
+                break;
+            default:
+                return -1;
+        }
+        return offset > length ? -1 : offset;
+    }
+
+    /**
+     * Polls the control connection for its end, the proxy sends nothing else on it after the reply.
+     * Called from the receiving thread only.
+     */
+    @SuppressWarnings("EmptyCatchBlock")
+    private void checkControl() throws IOException {
+        nextControlCheckMillis = System.currentTimeMillis() + controlCheckMillis;
+        try {
+            if (control.getInputStream().read(controlBuffer) < 0)
+                throw new SocketException("SOCKS5 control connection closed");
+        } catch (SocketTimeoutException e) {
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        relay.close();
+        control.close();
+    }
+}
@@ -0,0 +1,93 @@
+package cc.nium.sni.io;
+
+import cc.nium.sni.annotation.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Optional Linux transport moving bytes socket to socket through a pipe with splice(2), never copying them into the JVM.
+ * Backed by {@code libsniproxy.so} from {@code src/main/c}, looked up on {@code java.library.path} and then in the working directory.
+ */
+final class Splice {
+
+    static final int resultEof = -1;
+    static final int resultTimeout = -2;
+    private static final String libraryName = "sniproxy";
+    private static final boolean available = load();
+
+    private Splice() {
+    }
+
+    private static boolean load() {
+        if (!System.getProperty("os.name", "").toLowerCase().startsWith("linux"))
+            return false;
+        try {
+            System.loadLibrary(libraryName);
+            return true;
+        } catch (UnsatisfiedLinkError | SecurityException ignored) {
+        }
+        try {
+            System.load(new File(System.mapLibraryName(libraryName)).getAbsolutePath());
+            return true;
+        } catch (UnsatisfiedLinkError | SecurityException e) {
+            System.err.println("splice transport unavailable, using java transport: " + e.getMessage());
+            return false;
+        }
+    }
+
+    static boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * @return the OS file descriptor of a connected socket, or -1; the number is only valid while the socket is open, see {@link #dup}
+     */
+    static native int fd(@NotNull Socket socket);
+
+    /**
+     * @return the OS file descriptor of a bound server socket, or -1
+     */
+    static native int serverFd(@NotNull ServerSocket serverSocket);
+
+    /**
+     * Waits until one of the first {@code count} descriptors is readable, at end of stream or failed, at most {@code timeoutMillis}.
+     *
+     * @param revents receives the poll(2) result events of each descriptor, non-zero when it needs attention
+     * @return count of descriptors that need attention
+     */
+    static native int poll(@NotNull int[] fds, @NotNull int[] revents, int count, int timeoutMillis) throws IOException;
+
+    /**
+     * @return a close-on-exec duplicate of {@code fd}, to be released with {@link #close}
+     */
+    static native int dup(int fd) throws IOException;
+
+    /**
+     * Shuts the socket down in both directions, waking any {@link #transfer} waiting on it.
+     */
+    static native void shutdown(int fd);
+
+    static native void close(int fd);
+
+    /**
+     * Same probe as {@link Socket#sendUrgentData}, except that a full send buffer is not an error.
+     */
+    static native void sendUrgentData(int fd) throws IOException;
+
+    /**
+     * @return (read end &lt;&lt; 32) | write end of a new non-blocking pipe
+     */
+    static native long pipe(int size) throws IOException;
+
+    static native void closePipe(long pipe);
+
+    /**
+     * Moves at most {@code max} bytes from {@code in} to {@code out}.
+     *
+     * @return count of bytes moved, {@link #resultEof} or {@link #resultTimeout}
+     */
+    static native int transfer(int in, int out, long pipe, int max, int timeoutMillis) throws IOException;
+}
@@ -0,0 +1,72 @@
+package cc.nium.sni.io;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.annotation.Nullable;
+import cc.nium.sni.stats.PhaseLatency;
+
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State shared by every server that forwards to the same upstream proxy.
+ * The connect limiter is configured by the first server that names the upstream, later servers must configure the same one.
+ */
+public final class Upstream {
+
+    private static final ConcurrentHashMap<Proxy, Upstream> upstreams = new ConcurrentHashMap<>();
+
+    @NotNull
+    private final String name;
+    @NotNull
+    private final PhaseLatency latency = new PhaseLatency();
+    @Nullable
+    private final ConnectLimiter limiter;
+    @NotNull
+    private final String limiterSettings;
+
+    private Upstream(@NotNull final Proxy proxy, @Nullable final ConnectLimiter limiter, @NotNull final String limiterSettings) {
+        final InetSocketAddress address = (InetSocketAddress) proxy.address();
+        this.name = proxy.type().toString().toLowerCase() + "://" + address.getHostString() + ":" + address.getPort();
+        this.limiter = limiter;
+        this.limiterSettings = limiterSettings;
+    }
+
+    /**
+     * @throws RuntimeException when the upstream is already registered with other connect limiter settings
+     */
+    @NotNull
+    static Upstream of(@NotNull final Proxy proxy, @Nullable final ConnectLimiter.Algorithm algorithm, final int maxLimit, final int queueMillis) {
+        final String settings = algorithm == null ? "none" : algorithm.toString().toLowerCase() + " limit <= " + maxLimit + ", queue " + queueMillis + "ms";
+        final Upstream upstream = upstreams.computeIfAbsent(proxy,
+                p -> new Upstream(p, algorithm == null ? null : new ConnectLimiter(algorithm, maxLimit, queueMillis), settings));
+        if (!upstream.limiterSettings.equals(settings))
+            throw new RuntimeException("connect limiter of " + upstream.name + " is \"" + upstream.limiterSettings + "\" on an earlier server, not \"" + settings
+                    + "\": servers sharing a proxy share its limiter, give them the same connectLimiter, connectLimitMax and connectQueueMillis");
+        return upstream;
+    }
+
+    @NotNull
+    String getName() {
+        return name;
+    }
+
+    @NotNull
+    PhaseLatency getLatency() {
+        return latency;
+    }
+
+    @Nullable
+    ConnectLimiter getLimiter() {
+        return limiter;
+    }
+
+    public static void printStats(@NotNull final PrintStream out) {
+        for (final Upstream upstream : upstreams.values()) {
+            upstream.latency.printAndReset(out, upstream.name);
+            if (upstream.limiter != null)
+                upstream.limiter.printAndReset(out, upstream.name);
+        }
+    }
+}
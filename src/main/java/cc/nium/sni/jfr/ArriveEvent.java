@@ -0,0 +1,17 @@
+package cc.nium.sni.jfr;
+
+import jdk.jfr.*;
+
+@Name("cc.nium.sni.Arrive")
+@Label("Connection Arrive")
+@Description("A client connection was accepted")
+@Category("SNIProxy")
+@StackTrace(false)
+final class ArriveEvent extends Event {
+
+    @Label("Client")
+    String client;
+
+    @Label("Server Port")
+    int serverPort;
+}
@@ -0,0 +1,21 @@
+package cc.nium.sni.jfr;
+
+import jdk.jfr.*;
+
+@Name("cc.nium.sni.Connect")
+@Label("Upstream Connect")
+@Description("Connecting to the destination through the upstream proxy")
+@Category("SNIProxy")
+@StackTrace(false)
+@Threshold("1 ms")
+final class ConnectEvent extends Event {
+
+    @Label("Client")
+    String client;
+
+    @Label("SNI Name")
+    String sniName;
+
+    @Label("Upstream")
+    String upstream;
+}
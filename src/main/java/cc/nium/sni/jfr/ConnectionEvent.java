@@ -0,0 +1,40 @@
+package cc.nium.sni.jfr;
+
+import jdk.jfr.*;
+
+@Name("cc.nium.sni.Close")
+@Label("Connection")
+@Description("Whole connection lifetime, committed when it is closed")
+@Category("SNIProxy")
+@StackTrace(false)
+@Threshold("0 ms")
+final class ConnectionEvent extends Event {
+
+    @Label("Client")
+    String client;
+
+    @Label("Server Port")
+    int serverPort;
+
+    @Label("SNI Name")
+    String sniName;
+
+    @Label("Upstream")
+    String upstream;
+
+    @Label("Bytes Up")
+    @DataAmount
+    long bytesUp;
+
+    @Label("Bytes Down")
+    @DataAmount
+    long bytesDown;
+
+    @Label("Parse Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long parseDuration;
+
+    @Label("Connect Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long connectDuration;
+}
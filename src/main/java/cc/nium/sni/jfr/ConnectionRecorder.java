@@ -0,0 +1,67 @@
+package cc.nium.sni.jfr;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.annotation.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.function.Supplier;
+
+/**
+ * Per-connection hook for JDK Flight Recorder events.
+ * <p>
+ * The base class does nothing. {@link #create()} hands out a recording instance only while a
+ * recording is running, so connections cost nothing when JFR is off or missing (e.g. Java 8 before 8u262).
+ * The JFR classes are only reached by reflection, the {@code no-jfr} build profile leaves them out for JDKs without {@code jdk.jfr}.
+ */
+public class ConnectionRecorder {
+
+    @NotNull
+    private static final ConnectionRecorder noop = new ConnectionRecorder();
+    @Nullable
+    private static final Supplier<ConnectionRecorder> jfr = loadJfr();
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private static Supplier<ConnectionRecorder> loadJfr() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            final Method install = Class.forName("cc.nium.sni.jfr.JfrConnectionRecorder").getDeclaredMethod("install");
+            return (Supplier<ConnectionRecorder>) install.invoke(null);
+        } catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+            return null;
+        }
+    }
+
+    ConnectionRecorder() {
+    }
+
+    @NotNull
+    public static ConnectionRecorder create() {
+        final ConnectionRecorder recorder = jfr == null ? null : jfr.get();
+        return recorder == null ? noop : recorder;
+    }
+
+    public void arrive(@NotNull final String client, final int serverPort) {
+    }
+
+    public void beginParse() {
+    }
+
+    public void endParse(@NotNull final String client, @NotNull final String sniName, final int headBytes) {
+    }
+
+    public void beginConnect() {
+    }
+
+    public void endConnect(@NotNull final String upstream) {
+    }
+
+    public void forwarderState(@NotNull final String direction, @NotNull final String state, final long bytes) {
+    }
+
+    public void error(@NotNull final String item, @Nullable final String direction, @NotNull final Exception e) {
+    }
+
+    public void close(final long bytesUp, final long bytesDown) {
+    }
+}
@@ -0,0 +1,29 @@
+package cc.nium.sni.jfr;
+
+import jdk.jfr.*;
+
+@Name("cc.nium.sni.Error")
+@Label("Connection Error")
+@Description("A connection failed and is being closed")
+@Category("SNIProxy")
+@StackTrace(false)
+final class ErrorEvent extends Event {
+
+    @Label("Client")
+    String client;
+
+    @Label("SNI Name")
+    String sniName;
+
+    @Label("Item")
+    String item;
+
+    @Label("Direction")
+    String direction;
+
+    @Label("Exception")
+    String exception;
+
+    @Label("Message")
+    String message;
+}
@@ -0,0 +1,27 @@
+package cc.nium.sni.jfr;
+
+import jdk.jfr.*;
+
+@Name("cc.nium.sni.ForwarderState")
+@Label("Forwarder State")
+@Description("A forwarding direction switched between running and idle")
+@Category("SNIProxy")
+@StackTrace(false)
+final class ForwarderStateEvent extends Event {
+
+    @Label("Client")
+    String client;
+
+    @Label("SNI Name")
+    String sniName;
+
+    @Label("Direction")
+    String direction;
+
+    @Label("State")
+    String state;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
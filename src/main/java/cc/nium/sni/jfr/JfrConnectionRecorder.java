@@ -0,0 +1,166 @@
+package cc.nium.sni.jfr;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.annotation.Nullable;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+import java.util.function.Supplier;
+
+/**
+ * Only loaded when {@code jdk.jfr} is present.
+ */
+final class JfrConnectionRecorder extends ConnectionRecorder {
+
+    private static volatile boolean recording = false;
+
+    private final ConnectionEvent connection = new ConnectionEvent();
+    private String client;
+    private int serverPort;
+    private String sniName;
+    private String upstream;
+    private ParseEvent parse;
+    private ConnectEvent connect;
+    private long parseStart;
+    private long connectStart;
+    private long parseDuration;
+    private long connectDuration;
+
+    JfrConnectionRecorder() {
+        connection.begin();
+    }
+
+    /**
+     * Called reflectively by {@link ConnectionRecorder}, so this class may be left out of builds without {@code jdk.jfr}.
+     *
+     * @return the recorder factory, handing out null while no recording is running
+     */
+    @NotNull
+    static Supplier<ConnectionRecorder> install() {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(final Recording changed) {
+                updateRecording();
+            }
+        });
+        // recordings started from the command line exist before the listener
+        if (FlightRecorder.isInitialized())
+            updateRecording();
+        return () -> recording ? new JfrConnectionRecorder() : null;
+    }
+
+    private static void updateRecording() {
+        boolean running = false;
+        for (final Recording r : FlightRecorder.getFlightRecorder().getRecordings()) {
+            if (r.getState() == RecordingState.RUNNING) {
+                running = true;
+                break;
+            }
+        }
+        recording = running;
+    }
+
+    @Override
+    public void arrive(@NotNull final String client, final int serverPort) {
+        this.client = client;
+        this.serverPort = serverPort;
+        final ArriveEvent event = new ArriveEvent();
+        if (event.shouldCommit()) {
+            event.client = client;
+            event.serverPort = serverPort;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void beginParse() {
+        parseStart = System.nanoTime();
+        parse = new ParseEvent();
+        parse.begin();
+    }
+
+    @Override
+    public void endParse(@NotNull final String client, @NotNull final String sniName, final int headBytes) {
+        this.client = client;
+        this.sniName = sniName;
+        final ParseEvent event = parse;
+        if (event == null)
+            return;
+        event.end();
+        parseDuration = System.nanoTime() - parseStart;
+        if (event.shouldCommit()) {
+            event.client = client;
+            event.sniName = sniName;
+            event.headBytes = headBytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void beginConnect() {
+        connectStart = System.nanoTime();
+        connect = new ConnectEvent();
+        connect.begin();
+    }
+
+    @Override
+    public void endConnect(@NotNull final String upstream) {
+        this.upstream = upstream;
+        final ConnectEvent event = connect;
+        if (event == null)
+            return;
+        event.end();
+        connectDuration = System.nanoTime() - connectStart;
+        if (event.shouldCommit()) {
+            event.client = client;
+            event.sniName = sniName;
+            event.upstream = upstream;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void forwarderState(@NotNull final String direction, @NotNull final String state, final long bytes) {
+        final ForwarderStateEvent event = new ForwarderStateEvent();
+        if (event.shouldCommit()) {
+            event.client = client;
+            event.sniName = sniName;
+            event.direction = direction;
+            event.state = state;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void error(@NotNull final String item, @Nullable final String direction, @NotNull final Exception e) {
+        final ErrorEvent event = new ErrorEvent();
+        if (event.shouldCommit()) {
+            event.client = client;
+            event.sniName = sniName;
+            event.item = item;
+            event.direction = direction;
+            event.exception = e.getClass().getName();
+            event.message = e.getMessage();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void close(final long bytesUp, final long bytesDown) {
+        connection.end();
+        if (connection.shouldCommit()) {
+            connection.client = client;
+            connection.serverPort = serverPort;
+            connection.sniName = sniName;
+            connection.upstream = upstream;
+            connection.bytesUp = bytesUp;
+            connection.bytesDown = bytesDown;
+            connection.parseDuration = parseDuration;
+            connection.connectDuration = connectDuration;
+            connection.commit();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package cc.nium.sni.jfr;
+
+import jdk.jfr.*;
+
+@Name("cc.nium.sni.Parse")
+@Label("Connection Parse")
+@Description("Reading the ClientHello until the SNI name is known")
+@Category("SNIProxy")
+@StackTrace(false)
+@Threshold("1 ms")
+final class ParseEvent extends Event {
+
+    @Label("Client")
+    String client;
+
+    @Label("SNI Name")
+    String sniName;
+
+    @Label("Head Bytes")
+    @DataAmount
+    int headBytes;
+}
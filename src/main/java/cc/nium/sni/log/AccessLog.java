@@ -0,0 +1,134 @@
+package cc.nium.sni.log;
+
+import cc.nium.sni.annotation.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Append-only access log of fixed-width {@link AccessLogRecord}s in memory-mapped segment files.
+ * A writer claims a slot with one atomic increment and fills it with plain memory stores, so logging a connection costs no syscall;
+ * only the writer that finds the segment full or too old maps the next one.
+ * Records survive a crash of the process, the kernel writes the pages back, but not necessarily a crash of the machine.
+ * <p>
+ * Segment file {@code access-yyyyMMdd-HHmmss-SSS.sal}: a {@link #headerSize} byte header, then {@code capacity} record slots.
+ * Slots that were never written stay zero, readers skip them.
+ * <pre>
+ *  0  8  magic "SNIALOG\0"
+ *  8  i32 version
+ * 12  i32 record size
+ * 16  i32 capacity
+ * 20  4  reserved
+ * 24  i64 created, epoch millis
+ * </pre>
+ */
+public final class AccessLog {
+
+    static final byte[] magic = {'S', 'N', 'I', 'A', 'L', 'O', 'G', 0};
+    static final int version = 1;
+    static final int headerSize = 64;
+    static final String suffix = ".sal";
+
+    @NotNull
+    private final File directory;
+    private final int capacity;
+    private final long rotateMillis;
+    @NotNull
+    private final AtomicReference<Segment> current = new AtomicReference<>();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param segmentBytes  size of a segment file, rounded down to whole records
+     * @param rotateMinutes age after which the next record starts a new segment even if the current one is not full
+     */
+    public AccessLog(@NotNull final File directory, final long segmentBytes, final int rotateMinutes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create access log directory " + directory);
+        this.directory = directory;
+        this.capacity = (int) Math.min((Integer.MAX_VALUE - headerSize) / AccessLogRecord.size, (segmentBytes - headerSize) / AccessLogRecord.size);
+        this.rotateMillis = rotateMinutes * 60_000L;
+        current.set(new Segment(directory, capacity, System.currentTimeMillis()));
+    }
+
+    public void write(@NotNull final AccessLogRecord record) {
+        while (true) {
+            final Segment segment = current.get();
+            final int slot = segment.next.getAndIncrement();
+            if (slot < capacity && System.currentTimeMillis() - segment.createdMillis < rotateMillis) {
+                try {
+                    record.writeTo(segment.buffer, headerSize + slot * AccessLogRecord.size);
+                } catch (InternalError e) {
+                    // the page of a sparse segment could not be backed, e.g. the disk is full
+                    dropped.increment();
+                    return;
+                }
+                written.increment();
+                return;
+            }
+            if (!rotate(segment)) {
+                dropped.increment();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false when no new segment could be created, the record is dropped then rather than blocking the connection
+     */
+    private synchronized boolean rotate(@NotNull final Segment full) {
+        if (current.get() != full)
+            return true;
+        try {
+            // a full segment is left for the kernel to write back, forcing it here would stall on disk I/O
+            current.set(new Segment(directory, capacity, System.currentTimeMillis()));
+            return true;
+        } catch (IOException e) {
+            System.err.println("access log rotation failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Prints records written and dropped since the previous call and resets.
+     */
+    public void printStats(@NotNull final PrintStream out) {
+        out.println("access log " + directory + " written = " + written.sumThenReset() + " dropped = " + dropped.sumThenReset());
+    }
+
+    private static final class Segment {
+        @NotNull
+        private final MappedByteBuffer buffer;
+        private final long createdMillis;
+        private final AtomicInteger next = new AtomicInteger();
+
+        private Segment(@NotNull final File directory, final int capacity, final long createdMillis) throws IOException {
+            this.createdMillis = createdMillis;
+            final String name = "access-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(createdMillis));
+            File file = new File(directory, name + suffix);
+            for (int i = 1; file.exists(); i++)
+                file = new File(directory, name + "-" + i + suffix);
+            try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                // the mapping stays valid after the channel is closed
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, headerSize + (long) capacity * AccessLogRecord.size);
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < magic.length; i++)
+                buffer.put(i, magic[i]);
+            buffer.putInt(8, version);
+            buffer.putInt(12, AccessLogRecord.size);
+            buffer.putInt(16, capacity);
+            buffer.putLong(24, createdMillis);
+        }
+    }
+}
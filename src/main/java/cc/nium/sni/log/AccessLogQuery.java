@@ -0,0 +1,260 @@
+package cc.nium.sni.log;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Filters and aggregates access log segments offline.
+ * <p>
+ * Usage: {@code java -cp SNIProxy.jar cc.nium.sni.log.AccessLogQuery [options] <segment file or directory>...}
+ * <ul>
+ * <li>{@code --sni <text>}, {@code --upstream <text>}: keep records whose SNI / upstream contains the text</li>
+ * <li>{@code --client <address>}: keep records of one client address</li>
+ * <li>{@code --reason <name>}: keep records closed for one reason, e.g. {@code close}, {@code connect}</li>
+ * <li>{@code --since <time>}, {@code --until <time>}: keep records started in [since, until), epoch millis or ISO-8601 instant</li>
+ * <li>{@code --group-by sni|client|upstream|reason|local-port|dst-port}: print count, bytes and mean duration per key instead of records,
+ * {@code local-port} is the listener the client connected to, {@code dst-port} the port asked of the upstream</li>
+ * <li>{@code --top <n>}: print at most n lines, groups sorted by count</li>
+ * </ul>
+ * Segments still being written may yield a torn record at the slots being filled, finished segments are exact.
+ * <p>
+ * Records are printed tab separated: start, duration ms, protocol, client, local port, SNI:port, upstream, bytes up, bytes down, reason, error, direction.
+ */
+public final class AccessLogQuery {
+
+    private static final String[] groupKeys = {"sni", "client", "upstream", "reason", "local-port", "dst-port"};
+
+    @Nullable
+    private String sni;
+    @Nullable
+    private InetAddress client;
+    @Nullable
+    private String upstream;
+    @Nullable
+    private AccessLogRecord.Reason reason;
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+    @Nullable
+    private String groupBy;
+    private int top = Integer.MAX_VALUE;
+    private final HashMap<String, Group> groups = new HashMap<>();
+    private long printed = 0;
+
+    public static void main(String[] args) {
+        final AccessLogQuery query = new AccessLogQuery();
+        final ArrayList<File> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    addFiles(files, new File(arg));
+                    continue;
+                }
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("missing value for " + arg);
+                final String value = args[++i];
+                switch (arg) {
+                    case "--sni":
+                        query.sni = value;
+                        break;
+                    case "--client":
+                        query.client = InetAddress.getByName(value);
+                        break;
+                    case "--upstream":
+                        query.upstream = value;
+                        break;
+                    case "--reason":
+                        query.reason = parseReason(value);
+                        break;
+                    case "--since":
+                        query.since = parseTime(value);
+                        break;
+                    case "--until":
+                        query.until = parseTime(value);
+                        break;
+                    case "--group-by":
+                        if (!Arrays.asList(groupKeys).contains(value))
+                            throw new IllegalArgumentException("unknown group-by: \"" + value + "\", available: " + Arrays.toString(groupKeys));
+                        query.groupBy = value;
+                        break;
+                    case "--top":
+                        query.top = Integer.parseInt(value);
+                        if (query.top <= 0)
+                            throw new IllegalArgumentException("top " + query.top + " out of range: (0, " + Integer.MAX_VALUE + "]");
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option: \"" + arg + "\"");
+                }
+            }
+            if (files.isEmpty())
+                throw new IllegalArgumentException("no segment files given");
+        } catch (IOException | RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java -cp SNIProxy.jar cc.nium.sni.log.AccessLogQuery [--sni text] [--client address] [--upstream text] [--reason name]"
+                    + " [--since time] [--until time] [--group-by " + String.join("|", groupKeys) + "] [--top n] <segment file or directory>...");
+            System.exit(2);
+            return;
+        }
+        // segment names start with their creation time, so sorting by name reads records roughly in order
+        files.sort(null);
+        for (final File file : files) {
+            try {
+                query.read(file);
+            } catch (IOException e) {
+                System.err.println(file + ": " + e.getMessage());
+            }
+        }
+        query.printGroups();
+    }
+
+    private static void addFiles(@NotNull final ArrayList<File> files, @NotNull final File file) {
+        if (!file.isDirectory()) {
+            files.add(file);
+            return;
+        }
+        final File[] children = file.listFiles((dir, name) -> name.endsWith(AccessLog.suffix));
+        if (children != null)
+            files.addAll(Arrays.asList(children));
+    }
+
+    @NotNull
+    private static AccessLogRecord.Reason parseReason(@NotNull final String value) {
+        for (final AccessLogRecord.Reason reason : AccessLogRecord.Reason.values()) {
+            if (reason.name().equalsIgnoreCase(value))
+                return reason;
+        }
+        throw new IllegalArgumentException("unknown reason: \"" + value + "\", available: " + Arrays.toString(AccessLogRecord.Reason.values()).toLowerCase());
+    }
+
+    private static long parseTime(@NotNull final String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return Instant.parse(value).toEpochMilli();
+            } catch (DateTimeParseException e1) {
+                throw new IllegalArgumentException("invalid time: \"" + value + "\", expected epoch millis or e.g. 2024-01-31T12:00:00Z");
+            }
+        }
+    }
+
+    private void read(@NotNull final File file) throws IOException {
+        final MappedByteBuffer buffer;
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < AccessLog.headerSize)
+                throw new IOException("not an access log segment");
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < AccessLog.magic.length; i++) {
+            if (buffer.get(i) != AccessLog.magic[i])
+                throw new IOException("not an access log segment");
+        }
+        final int version = buffer.getInt(8);
+        final int recordSize = buffer.getInt(12);
+        if (version != AccessLog.version || recordSize != AccessLogRecord.size)
+            throw new IOException("unsupported segment version " + version + " record size " + recordSize);
+        // a segment still being written may be shorter than its header claims on some filesystems
+        final long capacity = Math.min(buffer.getInt(16), (buffer.capacity() - AccessLog.headerSize) / recordSize);
+        final AccessLogRecord record = new AccessLogRecord();
+        for (int slot = 0; slot < capacity; slot++) {
+            if (record.readFrom(buffer, AccessLog.headerSize + slot * recordSize) && matches(record))
+                accept(record);
+        }
+    }
+
+    private boolean matches(@NotNull final AccessLogRecord record) {
+        return (sni == null || record.getSniName().contains(sni))
+                && (client == null || client.equals(record.getClientAddress()))
+                && (upstream == null || record.getUpstream().contains(upstream))
+                && (reason == null || reason == record.getReason())
+                && record.getStartMillis() >= since && record.getStartMillis() < until;
+    }
+
+    private void accept(@NotNull final AccessLogRecord record) {
+        if (groupBy == null) {
+            if (printed++ < top)
+                System.out.println(format(record));
+            return;
+        }
+        final String key;
+        switch (groupBy) {
+            case "sni":
+                key = record.getSniName();
+                break;
+            case "client":
+                key = record.getClientAddress() == null ? "" : record.getClientAddress().getHostAddress();
+                break;
+            case "upstream":
+                key = record.getUpstream();
+                break;
+            case "reason":
+                key = record.getReason().name().toLowerCase();
+                break;
+            case "local-port":
+                key = String.valueOf(record.getLocalPort());
+                break;
+            default:
+                key = String.valueOf(record.getDstPort());
+                break;
+        }
+        groups.computeIfAbsent(key, k -> new Group()).add(record);
+    }
+
+    @NotNull
+    private static String format(@NotNull final AccessLogRecord record) {
+        return Instant.ofEpochMilli(record.getStartMillis())
+                + "\t" + (record.getEndMillis() - record.getStartMillis())
+                + "\t" + (record.isQuic() ? "quic" : "tcp")
+                + "\t" + (record.getClientAddress() == null ? "-" : record.getClientAddress().getHostAddress()) + ":" + record.getClientPort()
+                + "\t" + record.getLocalPort()
+                + "\t" + (record.getSniName().isEmpty() ? "-" : record.getSniName()) + (record.isTruncated() ? "..." : "") + ":" + record.getDstPort()
+                + "\t" + record.getUpstream()
+                + "\t" + record.getBytesUp()
+                + "\t" + record.getBytesDown()
+                + "\t" + record.getReason().name().toLowerCase()
+                + "\t" + record.getError().name().toLowerCase()
+                + "\t" + record.getDirection().name().toLowerCase();
+    }
+
+    private void printGroups() {
+        if (groupBy == null)
+            return;
+        final ArrayList<Map.Entry<String, Group>> entries = new ArrayList<>(groups.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue().count, a.getValue().count));
+        System.out.println(groupBy + "\tcount\tbytes up\tbytes down\tmean ms");
+        for (int i = 0; i < entries.size() && i < top; i++) {
+            final Group group = entries.get(i).getValue();
+            System.out.println((entries.get(i).getKey().isEmpty() ? "-" : entries.get(i).getKey())
+                    + "\t" + group.count + "\t" + group.bytesUp + "\t" + group.bytesDown + "\t" + group.millis / group.count);
+        }
+    }
+
+    private static final class Group {
+        private long count;
+        private long bytesUp;
+        private long bytesDown;
+        private long millis;
+
+        private void add(@NotNull final AccessLogRecord record) {
+            count++;
+            bytesUp += record.getBytesUp();
+            bytesDown += record.getBytesDown();
+            millis += record.getEndMillis() - record.getStartMillis();
+        }
+    }
+}
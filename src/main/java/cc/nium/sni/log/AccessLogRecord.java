@@ -0,0 +1,261 @@
+package cc.nium.sni.log;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.annotation.Nullable;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One connection of the access log, stored as a fixed-width little-endian record of {@link #size} bytes:
+ * <pre>
+ *   0  u8     flags, bit 0 = committed (written last), bit 1 = SNI truncated
+ *   1  u8     protocol, 0 = tcp, 1 = quic
+ *   2  u8     close reason, see {@link Reason}
+ *   3  u8     error, see {@link Error}
+ *   4  u8     direction of the error, 0 = none, 1 = up, 2 = down
+ *   5  u8     client address length, 4 or 16
+ *   6  u16    client port
+ *   8  u16    local port
+ *  10  u16    destination port
+ *  12  4      reserved
+ *  16  16     client address, IPv4 in the first 4 bytes
+ *  32  i64    start, epoch millis
+ *  40  i64    end, epoch millis
+ *  48  i64    bytes up, client to upstream
+ *  56  i64    bytes down, upstream to client
+ *  64  u8+63  upstream name, length prefixed UTF-8
+ * 128  u8+191 SNI, length prefixed UTF-8
+ * </pre>
+ */
+public final class AccessLogRecord {
+
+    public static final int size = 320;
+    private static final int flagCommitted = 0x01;
+    private static final int flagTruncated = 0x02;
+    private static final int upstreamOffset = 64;
+    private static final int upstreamMax = 63;
+    private static final int sniOffset = 128;
+    private static final int sniMax = 191;
+
+    public enum Reason {
+        Close,
+        Parse,
+        Connect,
+        Local,
+        Upper,
+        Reject,
+        Expire,
+    }
+
+    public enum Error {
+        None,
+        Socket,
+        Timeout,
+        Protocol,
+        Rejected,
+        Other,
+    }
+
+    public enum Direction {
+        None,
+        Up,
+        Down,
+    }
+
+    private boolean quic;
+    @NotNull
+    private Reason reason = Reason.Close;
+    @NotNull
+    private Error error = Error.None;
+    @NotNull
+    private Direction direction = Direction.None;
+    @Nullable
+    private InetAddress clientAddress;
+    private int clientPort;
+    private int localPort;
+    private int dstPort;
+    private long startMillis;
+    private long endMillis;
+    private long bytesUp;
+    private long bytesDown;
+    @NotNull
+    private String upstream = "";
+    @NotNull
+    private String sniName = "";
+    private boolean truncated;
+
+    public AccessLogRecord() {
+    }
+
+    public AccessLogRecord(final boolean quic, @Nullable final InetAddress clientAddress, final int clientPort, final int localPort, final int dstPort,
+                           @NotNull final String upstream, @Nullable final String sniName, final long startMillis, final long endMillis,
+                           final long bytesUp, final long bytesDown, @NotNull final Reason reason, @NotNull final Error error, @NotNull final Direction direction) {
+        this.quic = quic;
+        this.clientAddress = clientAddress;
+        this.clientPort = clientPort;
+        this.localPort = localPort;
+        this.dstPort = dstPort;
+        this.upstream = upstream;
+        this.sniName = sniName == null ? "" : sniName;
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.bytesUp = bytesUp;
+        this.bytesDown = bytesDown;
+        this.reason = reason;
+        this.error = error;
+        this.direction = direction;
+    }
+
+    /**
+     * Writes the record at {@code offset} with absolute puts only, so writers of different slots never touch shared buffer state.
+     * The committed flag goes last, but plain buffer puts are not ordered for another reader of the mapping:
+     * only a segment read after its writer finished is sure to hold whole records, one read while written may show torn ones.
+     */
+    void writeTo(@NotNull final ByteBuffer buffer, final int offset) {
+        buffer.put(offset + 1, (byte) (quic ? 1 : 0));
+        buffer.put(offset + 2, (byte) reason.ordinal());
+        buffer.put(offset + 3, (byte) error.ordinal());
+        buffer.put(offset + 4, (byte) direction.ordinal());
+        final byte[] address = clientAddress == null ? new byte[0] : clientAddress.getAddress();
+        buffer.put(offset + 5, (byte) address.length);
+        buffer.putShort(offset + 6, (short) clientPort);
+        buffer.putShort(offset + 8, (short) localPort);
+        buffer.putShort(offset + 10, (short) dstPort);
+        for (int i = 0; i < address.length; i++)
+            buffer.put(offset + 16 + i, address[i]);
+        buffer.putLong(offset + 32, startMillis);
+        buffer.putLong(offset + 40, endMillis);
+        buffer.putLong(offset + 48, bytesUp);
+        buffer.putLong(offset + 56, bytesDown);
+        final boolean upstreamTruncated = putString(buffer, offset + upstreamOffset, upstream, upstreamMax);
+        final boolean sniTruncated = putString(buffer, offset + sniOffset, sniName, sniMax);
+        buffer.put(offset, (byte) (flagCommitted | (upstreamTruncated || sniTruncated ? flagTruncated : 0)));
+    }
+
+    /**
+     * @return false when the slot at {@code offset} holds no committed record, the record is left untouched then
+     */
+    boolean readFrom(@NotNull final ByteBuffer buffer, final int offset) {
+        final int flags = buffer.get(offset) & 0xFF;
+        if ((flags & flagCommitted) == 0)
+            return false;
+        truncated = (flags & flagTruncated) != 0;
+        quic = buffer.get(offset + 1) == 1;
+        reason = valueOf(Reason.values(), buffer.get(offset + 2), Reason.Close);
+        error = valueOf(Error.values(), buffer.get(offset + 3), Error.Other);
+        direction = valueOf(Direction.values(), buffer.get(offset + 4), Direction.None);
+        final byte[] address = new byte[buffer.get(offset + 5) & 0xFF];
+        clientPort = buffer.getShort(offset + 6) & 0xFFFF;
+        localPort = buffer.getShort(offset + 8) & 0xFFFF;
+        dstPort = buffer.getShort(offset + 10) & 0xFFFF;
+        for (int i = 0; i < address.length && i < 16; i++)
+            address[i] = buffer.get(offset + 16 + i);
+        try {
+            clientAddress = address.length == 4 || address.length == 16 ? InetAddress.getByAddress(address) : null;
+        } catch (UnknownHostException e) {
+            clientAddress = null;
+        }
+        startMillis = buffer.getLong(offset + 32);
+        endMillis = buffer.getLong(offset + 40);
+        bytesUp = buffer.getLong(offset + 48);
+        bytesDown = buffer.getLong(offset + 56);
+        upstream = getString(buffer, offset + upstreamOffset, upstreamMax);
+        sniName = getString(buffer, offset + sniOffset, sniMax);
+        return true;
+    }
+
+    private static boolean putString(@NotNull final ByteBuffer buffer, final int offset, @NotNull final String s, final int max) {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, max);
+        // cut before a whole character: back off while the first byte left out continues the one before it
+        while (length > 0 && length < bytes.length && (bytes[length] & 0xC0) == 0x80)
+            length--;
+        buffer.put(offset, (byte) length);
+        for (int i = 0; i < length; i++)
+            buffer.put(offset + 1 + i, bytes[i]);
+        return length < bytes.length;
+    }
+
+    @NotNull
+    private static String getString(@NotNull final ByteBuffer buffer, final int offset, final int max) {
+        final byte[] bytes = new byte[Math.min(buffer.get(offset) & 0xFF, max)];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(offset + 1 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    private static <T> T valueOf(@NotNull final T[] values, final byte ordinal, @NotNull final T unknown) {
+        final int i = ordinal & 0xFF;
+        return i < values.length ? values[i] : unknown;
+    }
+
+    public boolean isQuic() {
+        return quic;
+    }
+
+    @NotNull
+    public Reason getReason() {
+        return reason;
+    }
+
+    @NotNull
+    public Error getError() {
+        return error;
+    }
+
+    @NotNull
+    public Direction getDirection() {
+        return direction;
+    }
+
+    @Nullable
+    public InetAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    public int getClientPort() {
+        return clientPort;
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public int getDstPort() {
+        return dstPort;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    public long getBytesUp() {
+        return bytesUp;
+    }
+
+    public long getBytesDown() {
+        return bytesDown;
+    }
+
+    @NotNull
+    public String getUpstream() {
+        return upstream;
+    }
+
+    @NotNull
+    public String getSniName() {
+        return sniName;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
@@ -0,0 +1,72 @@
+package cc.nium.sni.stats;
+
+import cc.nium.sni.annotation.NotNull;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-direction forwarding counters shared by all connections of one server.
+ * Segment sizes are bucketed by powers of two, from {@code <= 64} up to {@code > 32K}.
+ */
+public final class ForwarderStats {
+
+    private static final int minShift = 6;
+    private static final int bucketCount = 11;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder polls = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder[] segments = new LongAdder[bucketCount];
+
+    public ForwarderStats() {
+        for (int i = 0; i < bucketCount; i++)
+            segments[i] = new LongAdder();
+    }
+
+    private static int bucketOf(final int length) {
+        final int bits = 32 - Integer.numberOfLeadingZeros(Math.max(length - 1, 0));
+        return Math.min(Math.max(bits - minShift, 0), bucketCount - 1);
+    }
+
+    public void read() {
+        reads.increment();
+    }
+
+    public void poll() {
+        polls.increment();
+    }
+
+    public void write(final int length) {
+        writes.increment();
+        bytes.add(length);
+        segments[bucketOf(length)].increment();
+    }
+
+    /**
+     * Prints the counters collected since the previous call and resets them.
+     */
+    public void printAndReset(@NotNull final PrintStream out, @NotNull final String name) {
+        final long reads = this.reads.sumThenReset();
+        final long polls = this.polls.sumThenReset();
+        final long writes = this.writes.sumThenReset();
+        final long bytes = this.bytes.sumThenReset();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(name)
+                .append(" reads = ").append(reads)
+                .append(" polls = ").append(polls)
+                .append(" writes = ").append(writes)
+                .append(" bytes = ").append(bytes)
+                .append(" avg segment = ").append(writes == 0 ? 0 : bytes / writes)
+                .append(" segments = [");
+        for (int i = 0; i < bucketCount; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(i == bucketCount - 1 ? ">" + (1 << (minShift + i - 1)) : "<=" + (1 << (minShift + i)))
+                    .append(": ").append(segments[i].sumThenReset());
+        }
+        sb.append(']');
+        out.println(sb);
+    }
+}
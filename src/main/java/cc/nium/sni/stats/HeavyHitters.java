@@ -0,0 +1,213 @@
+package cc.nium.sni.stats;
+
+import cc.nium.sni.annotation.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free, fixed-memory top-K tracker over a sliding window.
+ * <ul>
+ * <li>A count-min sketch (4 rows of 1024 counters) per sixth of the window estimates any key, overestimating by at most ~0.3% of the window total with 98% confidence.
+ * Summing the six sketches gives the window, clearing the oldest one slides it.
+ * Each row hashes the UTF-8 bytes of the key with its own murmur3 seed, drawn at random per instance,
+ * so keys cannot be crafted offline to collide with a target in every row and push it into the top.</li>
+ * <li>A space-saving style candidate table of {@code capacity} keys remembers which keys to ask the sketch about:
+ * a key whose estimate beats the smallest candidate replaces it.</li>
+ * </ul>
+ * Updates that race with a window slide may land in the slot being cleared, which loses them. Counts are approximate by design.
+ */
+public final class HeavyHitters {
+
+    private static final int depth = 4;
+    private static final int widthBits = 10;
+    private static final int width = 1 << widthBits;
+    private static final int slots = 6;
+
+    private final int[] seeds = new int[depth];
+    private final AtomicLongArray[] sketches = new AtomicLongArray[slots];
+    private final AtomicReferenceArray<Entry> candidates;
+    private final long originNanos = System.nanoTime();
+    private final long slotNanos;
+    private final AtomicLong epoch = new AtomicLong();
+
+    /**
+     * @param capacity      candidate keys kept, a few times the K that will be asked for
+     * @param windowSeconds length of the sliding window
+     */
+    public HeavyHitters(final int capacity, final int windowSeconds) {
+        final SecureRandom random = new SecureRandom();
+        for (int row = 0; row < depth; row++)
+            seeds[row] = random.nextInt();
+        for (int i = 0; i < slots; i++)
+            sketches[i] = new AtomicLongArray(depth * width);
+        this.candidates = new AtomicReferenceArray<>(capacity);
+        this.slotNanos = windowSeconds * 1_000_000_000L / slots;
+    }
+
+    public int getCapacity() {
+        return candidates.length();
+    }
+
+    public void add(@NotNull final String key, final long delta) {
+        rotate();
+        final AtomicLongArray sketch = sketches[(int) (epoch.get() % slots)];
+        final int[] cells = cells(key);
+        for (final int cell : cells)
+            sketch.addAndGet(cell, delta);
+        offer(key, cells, estimate(cells));
+    }
+
+    /**
+     * @return at most {@code k} keys with the highest estimates in the window, highest first
+     */
+    @NotNull
+    public ArrayList<Entry> top(final int k) {
+        rotate();
+        // concurrent inserts may have put a key into two slots
+        final HashMap<String, Entry> unique = new HashMap<>();
+        for (int i = 0; i < candidates.length(); i++) {
+            final Entry entry = candidates.get(i);
+            if (entry != null && !unique.containsKey(entry.key)) {
+                final long count = estimate(entry.cells);
+                if (count > 0)
+                    unique.put(entry.key, new Entry(entry.key, entry.cells, count));
+            }
+        }
+        final ArrayList<Entry> top = new ArrayList<>(unique.values());
+        top.sort((a, b) -> Long.compare(b.count, a.count));
+        return top.size() > k ? new ArrayList<>(top.subList(0, k)) : top;
+    }
+
+    /**
+     * @return the counter of {@code key} in each row, as an index into a sketch
+     */
+    @NotNull
+    private int[] cells(@NotNull final String key) {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        final int[] cells = new int[depth];
+        for (int row = 0; row < depth; row++)
+            cells[row] = row * width + (murmur3(bytes, seeds[row]) & (width - 1));
+        return cells;
+    }
+
+    /**
+     * MurmurHash3 x86 32-bit.
+     */
+    private static int murmur3(@NotNull final byte[] data, final int seed) {
+        int h = seed;
+        final int blocks = data.length & ~3;
+        for (int i = 0; i < blocks; i += 4) {
+            final int k = (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | data[i + 3] << 24;
+            h ^= mix(k);
+            h = Integer.rotateLeft(h, 13) * 5 + 0xE6546B64;
+        }
+        final int rem = data.length & 3;
+        if (rem > 0) {
+            int k = data[blocks] & 0xFF;
+            if (rem >= 2)
+                k |= (data[blocks + 1] & 0xFF) << 8;
+            if (rem >= 3)
+                k |= (data[blocks + 2] & 0xFF) << 16;
+            h ^= mix(k);
+        }
+        h ^= data.length;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int mix(int k) {
+        k *= 0xCC9E2D51;
+        k = Integer.rotateLeft(k, 15);
+        return k * 0x1B873593;
+    }
+
+    private long estimate(@NotNull final int[] cells) {
+        long min = Long.MAX_VALUE;
+        for (final int cell : cells) {
+            long sum = 0;
+            for (final AtomicLongArray sketch : sketches)
+                sum += sketch.get(cell);
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    private void offer(@NotNull final String key, @NotNull final int[] cells, final long count) {
+        int minIndex = -1;
+        Entry minEntry = null;
+        for (int i = 0; i < candidates.length(); i++) {
+            Entry entry = candidates.get(i);
+            if (entry == null) {
+                if (candidates.compareAndSet(i, null, new Entry(key, cells, count)))
+                    return;
+                entry = candidates.get(i);
+            }
+            if (entry.key.equals(key)) {
+                if (entry.count < count)
+                    candidates.compareAndSet(i, entry, new Entry(key, cells, count));
+                return;
+            }
+            if (minEntry == null || entry.count < minEntry.count) {
+                minIndex = i;
+                minEntry = entry;
+            }
+        }
+        // losing this race means another key just took the slot, which is as good
+        if (minEntry != null && count > minEntry.count)
+            candidates.compareAndSet(minIndex, minEntry, new Entry(key, cells, count));
+    }
+
+    /**
+     * Moves to the slot of the current time, clearing every slot skipped over,
+     * and refreshes the candidates so that keys which went quiet can be replaced.
+     */
+    private void rotate() {
+        final long now = (System.nanoTime() - originNanos) / slotNanos;
+        final long current = epoch.get();
+        if (now <= current || !epoch.compareAndSet(current, now))
+            return;
+        for (long e = Math.max(current + 1, now - slots + 1); e <= now; e++) {
+            final AtomicLongArray sketch = sketches[(int) (e % slots)];
+            for (int i = 0; i < sketch.length(); i++)
+                sketch.set(i, 0);
+        }
+        for (int i = 0; i < candidates.length(); i++) {
+            final Entry entry = candidates.get(i);
+            if (entry != null)
+                candidates.compareAndSet(i, entry, new Entry(entry.key, entry.cells, estimate(entry.cells)));
+        }
+    }
+
+    public static final class Entry {
+        @NotNull
+        private final String key;
+        @NotNull
+        private final int[] cells;
+        private final long count;
+
+        private Entry(@NotNull final String key, @NotNull final int[] cells, final long count) {
+            this.key = key;
+            this.cells = cells;
+            this.count = count;
+        }
+
+        @NotNull
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
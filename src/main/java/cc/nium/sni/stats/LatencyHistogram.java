@@ -0,0 +1,100 @@
+package cc.nium.sni.stats;
+
+import cc.nium.sni.annotation.NotNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory, lock-free latency histogram in microseconds, in the style of HdrHistogram:
+ * values below 64 are exact, above that every power of two is split into 32 sub-buckets (about 3% error).
+ * Values above ~19 hours are clamped into the last bucket.
+ */
+public final class LatencyHistogram {
+
+    private static final int subBits = 5;
+    private static final int subCount = 1 << subBits;
+    private static final int linearCount = subCount * 2;
+    private static final int maxExponent = 36;
+    private static final int bucketCount = linearCount + (maxExponent - subBits) * subCount;
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+
+    private static int indexOf(final long micros) {
+        if (micros < linearCount)
+            return (int) Math.max(micros, 0);
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > maxExponent)
+            return bucketCount - 1;
+        final int sub = (int) (micros >>> (exponent - subBits));
+        return linearCount + (exponent - subBits - 1) * subCount + (sub - subCount);
+    }
+
+    /**
+     * @return the highest value that falls into bucket {@code index}
+     */
+    private static long upperBoundOf(final int index) {
+        if (index < linearCount)
+            return index;
+        final int exponent = subBits + 1 + (index - linearCount) / subCount;
+        final int sub = subCount + (index - linearCount) % subCount;
+        return ((long) (sub + 1) << (exponent - subBits)) - 1;
+    }
+
+    public void recordNanos(final long nanos) {
+        counts.incrementAndGet(indexOf(nanos / 1000));
+    }
+
+    /**
+     * Takes the counts recorded so far and resets them. Values recorded concurrently land in either interval, never both.
+     */
+    @NotNull
+    public Snapshot snapshotAndReset() {
+        final long[] snapshot = new long[bucketCount];
+        for (int i = 0; i < bucketCount; i++)
+            snapshot[i] = counts.getAndSet(i, 0);
+        return new Snapshot(snapshot);
+    }
+
+    public static final class Snapshot {
+        @NotNull
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(@NotNull final long[] counts) {
+            this.counts = counts;
+            long total = 0;
+            for (final long count : counts)
+                total += count;
+            this.total = total;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * @param percentile in (0, 100]
+         * @return latency in microseconds, 0 when nothing was recorded
+         */
+        public long percentile(final double percentile) {
+            if (total == 0)
+                return 0;
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return upperBoundOf(i);
+            }
+            return upperBoundOf(counts.length - 1);
+        }
+
+        public long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0)
+                    return upperBoundOf(i);
+            }
+            return 0;
+        }
+    }
+}
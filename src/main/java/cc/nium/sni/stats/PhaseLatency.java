@@ -0,0 +1,53 @@
+package cc.nium.sni.stats;
+
+import cc.nium.sni.annotation.NotNull;
+
+import java.io.PrintStream;
+
+/**
+ * Setup latency of tunnels, split by phase:
+ * <ul>
+ * <li>handshake: accept until the ClientHello has been parsed</li>
+ * <li>connect: upstream connect, including the SOCKS / HTTP CONNECT handshake</li>
+ * <li>firstByte: upstream connected until the first downstream byte</li>
+ * <li>total: accept until the first downstream byte</li>
+ * </ul>
+ */
+public final class PhaseLatency {
+
+    private final LatencyHistogram handshake = new LatencyHistogram();
+    private final LatencyHistogram connect = new LatencyHistogram();
+    private final LatencyHistogram firstByte = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    public void recordHandshake(final long nanos) {
+        handshake.recordNanos(nanos);
+    }
+
+    public void recordConnect(final long nanos) {
+        connect.recordNanos(nanos);
+    }
+
+    public void recordFirstByte(final long nanos, final long totalNanos) {
+        firstByte.recordNanos(nanos);
+        total.recordNanos(totalNanos);
+    }
+
+    /**
+     * Prints p50 / p99 / p999 / max in microseconds since the previous call and resets.
+     */
+    public void printAndReset(@NotNull final PrintStream out, @NotNull final String name) {
+        print(out, name + " handshake", handshake.snapshotAndReset());
+        print(out, name + " connect  ", connect.snapshotAndReset());
+        print(out, name + " firstByte", firstByte.snapshotAndReset());
+        print(out, name + " total    ", total.snapshotAndReset());
+    }
+
+    private static void print(@NotNull final PrintStream out, @NotNull final String name, @NotNull final LatencyHistogram.Snapshot snapshot) {
+        out.println(name + " count = " + snapshot.getTotal()
+                + " p50 = " + snapshot.percentile(50) + "us"
+                + " p99 = " + snapshot.percentile(99) + "us"
+                + " p999 = " + snapshot.percentile(99.9) + "us"
+                + " max = " + snapshot.max() + "us");
+    }
+}
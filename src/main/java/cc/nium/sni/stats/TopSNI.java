@@ -0,0 +1,59 @@
+package cc.nium.sni.stats;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.annotation.Nullable;
+
+/**
+ * Heaviest SNI names over a sliding window, by connections opened and by bytes forwarded in both directions.
+ * Forwarders report bytes in steps of {@link #byteStep} and at close, so long transfers show up while they run.
+ */
+public final class TopSNI {
+
+    public static final long byteStep = 1024 * 1024;
+
+    private final int topK;
+    private final int windowSeconds;
+    @Nullable
+    private final HeavyHitters connections;
+    @Nullable
+    private final HeavyHitters bytes;
+
+    /**
+     * @param topK 0 disables tracking
+     */
+    public TopSNI(final int topK, final int windowSeconds) {
+        this.topK = topK;
+        this.windowSeconds = windowSeconds;
+        // 4 candidates per reported key keep keys hovering around the K-th place from evicting each other
+        this.connections = topK == 0 ? null : new HeavyHitters(topK * 4, windowSeconds);
+        this.bytes = topK == 0 ? null : new HeavyHitters(topK * 4, windowSeconds);
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public int getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    @Nullable
+    public HeavyHitters getConnections() {
+        return connections;
+    }
+
+    @Nullable
+    public HeavyHitters getBytes() {
+        return bytes;
+    }
+
+    public void addConnection(@NotNull final String sniName) {
+        if (connections != null)
+            connections.add(sniName, 1);
+    }
+
+    public void addBytes(@NotNull final String sniName, final long count) {
+        if (bytes != null && count > 0)
+            bytes.add(sniName, count);
+    }
+}
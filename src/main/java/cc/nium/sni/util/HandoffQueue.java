@@ -0,0 +1,35 @@
+package cc.nium.sni.util;
+
+import cc.nium.sni.annotation.NotNull;
+
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Work queue that makes a {@link ThreadPoolExecutor} with no core threads reuse an idle thread first, then grow to its maximum, and only then queue.
+ * {@link #offer} succeeds only by handing the task to an idle thread waiting for work, so otherwise the executor starts a new thread;
+ * at its maximum the executor rejects, and the rejection handler queues the task with {@link #force}, up to {@code capacity} tasks.
+ */
+public final class HandoffQueue<E> extends LinkedTransferQueue<E> {
+
+    private final int capacity;
+
+    public HandoffQueue(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offer(@NotNull final E e) {
+        return tryTransfer(e);
+    }
+
+    /**
+     * @return false when {@code capacity} tasks are queued already
+     */
+    public synchronized boolean force(@NotNull final E e) {
+        // size() walks the queue, which is short: at most capacity
+        if (size() >= capacity)
+            return false;
+        return super.offer(e);
+    }
+}
@@ -0,0 +1,11 @@
+package cc.nium.sni.util;
+
+import java.io.IOException;
+
+@SuppressWarnings("WeakerAccess")
+public final class JsonException extends IOException {
+
+    public JsonException(String message) {
+        super(message);
+    }
+}
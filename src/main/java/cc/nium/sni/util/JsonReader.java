@@ -0,0 +1,321 @@
+package cc.nium.sni.util;
+
+import cc.nium.sni.annotation.NotNull;
+import cc.nium.sni.annotation.Nullable;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Reflection-free pull reader for lenient JSON: accepts {@code //} and {@code /* *}{@code /} comments,
+ * trailing commas, single quoted strings and unquoted field names.
+ * Scalars are coerced the way a lenient mapper would, e.g. {@code "8192"} reads as an int.
+ */
+public final class JsonReader {
+
+    private static final int inObject = 1;
+    private static final int inArray = 2;
+
+    @NotNull
+    private final String text;
+    private int pos = 0;
+    private int line = 1;
+    private int lineStart = 0;
+    private int valueLine = 1;
+    private int valueColumn = 1;
+    private int[] stack = new int[8];
+    private int depth = 0;
+    private boolean expectComma = false;
+
+    public JsonReader(@NotNull final String text) {
+        this.text = text;
+    }
+
+    @NotNull
+    private JsonException error(@NotNull final String message, final int line, final int column) {
+        return new JsonException(message + " [line: " + line + ", column: " + column + "]");
+    }
+
+    @NotNull
+    private JsonException error(@NotNull final String message) {
+        return error(message, line, pos - lineStart + 1);
+    }
+
+    private void skipWhitespaceAndComments() throws JsonException {
+        while (pos < text.length()) {
+            final char ch = text.charAt(pos);
+            if (ch == '\n') {
+                pos++;
+                line++;
+                lineStart = pos;
+            } else if (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\uFEFF') {
+                pos++;
+            } else if (ch == '/' && pos + 1 < text.length() && text.charAt(pos + 1) == '/') {
+                while (pos < text.length() && text.charAt(pos) != '\n')
+                    pos++;
+            } else if (ch == '/' && pos + 1 < text.length() && text.charAt(pos + 1) == '*') {
+                final int end = text.indexOf("*/", pos + 2);
+                if (end < 0)
+                    throw error("Unterminated comment");
+                while (pos < end + 2) {
+                    if (text.charAt(pos++) == '\n') {
+                        line++;
+                        lineStart = pos;
+                    }
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private int peek() throws JsonException {
+        skipWhitespaceAndComments();
+        return pos < text.length() ? text.charAt(pos) : -1;
+    }
+
+    private void expect(final char expected) throws JsonException {
+        if (peek() != expected)
+            throw error("Expected '" + expected + "'");
+        pos++;
+    }
+
+    private void push(final int container) {
+        if (depth == stack.length)
+            stack = Arrays.copyOf(stack, depth * 2);
+        stack[depth++] = container;
+    }
+
+    private void beforeValue() throws JsonException {
+        peek();
+        valueLine = line;
+        valueColumn = pos - lineStart + 1;
+    }
+
+    private void afterValue() {
+        expectComma = true;
+    }
+
+    public void beginObject() throws JsonException {
+        beforeValue();
+        expect('{');
+        push(inObject);
+        expectComma = false;
+    }
+
+    public void endObject() throws JsonException {
+        if (depth == 0 || stack[depth - 1] != inObject)
+            throw error("Not in an object");
+        expect('}');
+        depth--;
+        afterValue();
+    }
+
+    public void beginArray() throws JsonException {
+        beforeValue();
+        expect('[');
+        push(inArray);
+        expectComma = false;
+    }
+
+    public void endArray() throws JsonException {
+        if (depth == 0 || stack[depth - 1] != inArray)
+            throw error("Not in an array");
+        expect(']');
+        depth--;
+        afterValue();
+    }
+
+    /**
+     * @return whether the current object or array has another element, consuming the separating comma
+     */
+    public boolean hasNext() throws JsonException {
+        final char close = depth > 0 && stack[depth - 1] == inObject ? '}' : ']';
+        int ch = peek();
+        if (ch == close)
+            return false;
+        if (expectComma) {
+            if (ch != ',')
+                throw error("Expected ',' or '" + close + "'");
+            pos++;
+            expectComma = false;
+            ch = peek();
+            // trailing comma
+            if (ch == close)
+                return false;
+        }
+        if (ch < 0)
+            throw error("Unexpected end of input");
+        return true;
+    }
+
+    @NotNull
+    public String nextName() throws JsonException {
+        final int ch = peek();
+        final String name;
+        if (ch == '"' || ch == '\'') {
+            name = readQuoted();
+        } else {
+            final int start = pos;
+            while (pos < text.length() && isIdentifierChar(text.charAt(pos)))
+                pos++;
+            if (start == pos)
+                throw error("Expected field name");
+            name = text.substring(start, pos);
+        }
+        expect(':');
+        expectComma = false;
+        return name;
+    }
+
+    private static boolean isIdentifierChar(final char ch) {
+        return ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9' || ch == '_' || ch == '$';
+    }
+
+    @NotNull
+    private String readQuoted() throws JsonException {
+        final char quote = text.charAt(pos++);
+        final StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (pos >= text.length())
+                throw error("Unterminated string");
+            final char ch = text.charAt(pos++);
+            if (ch == quote)
+                return sb.toString();
+            if (ch == '\n')
+                throw error("Unterminated string");
+            if (ch != '\\') {
+                sb.append(ch);
+                continue;
+            }
+            if (pos >= text.length())
+                throw error("Unterminated string");
+            final char escaped = text.charAt(pos++);
+            switch (escaped) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > text.length())
+                        throw error("Invalid unicode escape");
+                    try {
+                        sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid unicode escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    sb.append(escaped);
+            }
+        }
+    }
+
+    /**
+     * Reads a string, number, boolean or null literal as its text; null for {@code null}.
+     */
+    @Nullable
+    private String readScalar() throws JsonException {
+        beforeValue();
+        final int ch = peek();
+        if (ch == '"' || ch == '\'') {
+            final String s = readQuoted();
+            afterValue();
+            return s;
+        }
+        if (ch == '{' || ch == '[' || ch < 0)
+            throw error("Expected a scalar value");
+        final int start = pos;
+        while (pos < text.length() && (isIdentifierChar(text.charAt(pos)) || "+-.".indexOf(text.charAt(pos)) >= 0))
+            pos++;
+        if (start == pos)
+            throw error("Unexpected character '" + (char) ch + "'");
+        final String literal = text.substring(start, pos);
+        afterValue();
+        return "null".equals(literal) ? null : literal;
+    }
+
+    /**
+     * @return true and consumes the value if it is {@code null}
+     */
+    public boolean nextNull() throws JsonException {
+        beforeValue();
+        if (text.startsWith("null", pos) && (pos + 4 >= text.length() || !isIdentifierChar(text.charAt(pos + 4)))) {
+            pos += 4;
+            afterValue();
+            return true;
+        }
+        return false;
+    }
+
+    @Nullable
+    public String nextString() throws JsonException {
+        return readScalar();
+    }
+
+    /**
+     * Integral numbers written as floats, e.g. {@code 8192.0} or {@code 8e3}, are accepted as the previous Jackson based loader did.
+     */
+    public int nextInt() throws JsonException {
+        final String value = readScalar();
+        try {
+            if (value != null)
+                return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ignored) {
+        }
+        try {
+            if (value != null)
+                return new BigDecimal(value.trim()).intValueExact();
+        } catch (NumberFormatException | ArithmeticException ignored) {
+        }
+        throw error("\"" + value + "\" is not int", valueLine, valueColumn);
+    }
+
+    public boolean nextBoolean() throws JsonException {
+        final String value = readScalar();
+        if ("true".equals(value))
+            return true;
+        if ("false".equals(value))
+            return false;
+        throw error("\"" + value + "\" is not boolean", valueLine, valueColumn);
+    }
+
+    public void skipValue() throws JsonException {
+        final int ch = peek();
+        if (ch == '{') {
+            beginObject();
+            while (hasNext()) {
+                nextName();
+                skipValue();
+            }
+            endObject();
+        } else if (ch == '[') {
+            beginArray();
+            while (hasNext())
+                skipValue();
+            endArray();
+        } else {
+            readScalar();
+        }
+    }
+
+    /**
+     * Checks that nothing but whitespace and comments follows the top-level value.
+     */
+    public void end() throws JsonException {
+        if (peek() >= 0)
+            throw error("Unexpected content after the end of the document");
+    }
+}
@@ -0,0 +1,27 @@
+package cc.nium.sni.util;
+
+import cc.nium.sni.annotation.NotNull;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names threads {@code prefix-1}, {@code prefix-2}, ... so they can be told apart in thread dumps and profilers.
+ */
+public final class NamedThreadFactory implements ThreadFactory {
+
+    @NotNull
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public NamedThreadFactory(@NotNull final String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(@NotNull final Runnable r) {
+        final Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+        thread.setDaemon(false);
+        return thread;
+    }
+}
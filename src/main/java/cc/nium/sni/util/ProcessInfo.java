@@ -0,0 +1,50 @@
+package cc.nium.sni.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Process age and resident memory read from {@code /proc}, without loading the management API.
+ * Every method returns -1 where {@code /proc} is unavailable.
+ */
+public final class ProcessInfo {
+
+    private static final int clockTicksPerSecond = 100;
+
+    private ProcessInfo() {
+    }
+
+    /**
+     * @return milliseconds since the process started, with {@code USER_HZ} (10 ms) resolution
+     */
+    public static long uptimeMillis() {
+        try {
+            final String uptime = new String(Files.readAllBytes(Paths.get("/proc/uptime")), StandardCharsets.US_ASCII);
+            final double systemUptimeSeconds = Double.parseDouble(uptime.substring(0, uptime.indexOf(' ')));
+            final String stat = new String(Files.readAllBytes(Paths.get("/proc/self/stat")), StandardCharsets.US_ASCII);
+            // fields after the parenthesized command name, starttime is field 22
+            final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            final long startTicks = Long.parseLong(fields[22 - 3]);
+            return (long) (systemUptimeSeconds * 1000) - startTicks * 1000 / clockTicksPerSecond;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return resident set size in KiB
+     */
+    public static long rssKiB() {
+        try {
+            for (final String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+        return -1;
+    }
+}